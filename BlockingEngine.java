@@ -0,0 +1,49 @@
+package serveur;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+
+/** Moteur classique : chaque connexion est servie par une tâche qui lit ses commandes en bloquant. */
+class BlockingEngine implements ServerEngine {
+    private final RequestExecutor executor;
+
+    BlockingEngine(RequestExecutor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void serve(int port, CommandHandler handler) throws IOException, InterruptedException {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            while (true) {
+                SocketChannel channel = server.accept();
+                System.out.println("\nNouveau client connecté : " + channel.socket().getInetAddress());
+                executor.execute(() -> serveConnection(channel, handler));
+            }
+        }
+    }
+
+    private void serveConnection(SocketChannel channel, CommandHandler handler) {
+        try (Connection connection = new Connection(channel, new byte[0])) {
+            while (true) {
+                String command;
+                try {
+                    command = connection.in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (!ServerEngine.runCommand(connection, command, handler)) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                // rien à faire
+            }
+        }
+    }
+}
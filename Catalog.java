@@ -0,0 +1,404 @@
+package serveur;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Catalogue des fichiers stockés par le serveur principal : taille, découpage en chunks,
+ * slave de chaque chunk et date de modification. Un petit fichier groupé ({@link FileEntry#isPacked()})
+ * n'a qu'un chunk, rangé dans un segment de groupage de son slave à la position enregistrée. Il est gardé en mémoire (trié par nom) et
+ * persisté par un journal en ajout seul, compacté périodiquement en instantané.
+ *
+ * Chaque enregistrement du journal fixe l'état complet d'un nom : le rejouer sur un instantané
+ * plus récent donne le même résultat, ce qui permet d'écrire l'instantané sans bloquer les écritures.
+ * Le journal est forcé sur le disque avant le retour de chaque écriture, et l'instantané avant de
+ * remplacer l'ancien : un fichier annoncé au client survit à une coupure de courant.
+ *
+ * Les chunks d'une version sont stockés sous {@link #storedName} : un upload en cours n'écrit jamais sur
+ * les chunks de la version lue, et les lecteurs ne passent à la nouvelle version qu'avec son entrée.
+ */
+class Catalog {
+    private static final int MAX_UTF_LENGTH = 65535; // limite de writeUTF
+    private static final int STORED_SUFFIX_LENGTH = 64; // ".v<version>.chunk<numéro>" au plus
+
+    static final class FileEntry {
+        final String name;
+        final long size;
+        final long chunkSize;
+        final int[] chunkSlaves; // index du slave (dans la configuration) de chaque chunk
+        final int[] chunkCrcs; // CRC32C des données d'origine de chaque chunk
+        final long modified;
+        final long version;
+        final int packSegment; // segment de groupage sur le slave, -1 si le fichier a ses propres chunks
+        final long packOffset; // position des données dans le segment
+        final int packCrc; // CRC32C des données groupées
+
+        FileEntry(String name, long size, long chunkSize, int[] chunkSlaves, int[] chunkCrcs, long modified,
+                long version) {
+            this(name, size, chunkSize, chunkSlaves, chunkCrcs, modified, version, -1, 0, 0);
+        }
+
+        /** Fichier groupé : un seul « chunk », les données dans le segment. */
+        FileEntry(String name, long size, int slave, long modified, long version, int packSegment, long packOffset,
+                int packCrc) {
+            this(name, size, Math.max(1, size), new int[] { slave }, new int[] { packCrc }, modified, version,
+                    packSegment, packOffset, packCrc);
+        }
+
+        private FileEntry(String name, long size, long chunkSize, int[] chunkSlaves, int[] chunkCrcs, long modified,
+                long version, int packSegment, long packOffset, int packCrc) {
+            this.name = name;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunkSlaves = chunkSlaves;
+            this.chunkCrcs = chunkCrcs;
+            this.modified = modified;
+            this.version = version;
+            this.packSegment = packSegment;
+            this.packOffset = packOffset;
+            this.packCrc = packCrc;
+        }
+
+        /** Nom des chunks de cette version sur les slaves. */
+        String storedName() {
+            return Catalog.storedName(name, version);
+        }
+
+        boolean isPacked() {
+            return packSegment >= 0;
+        }
+
+        int chunkCount() {
+            return chunkSlaves.length;
+        }
+
+        long chunkLength(int index) {
+            return Math.min(chunkSize, size - index * chunkSize);
+        }
+    }
+
+    private static final int SNAPSHOT_MAGIC = 0x444E5443; // "DNTC"
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_DELETE = 2;
+    private static final byte RECORD_PUT_PACKED = 3;
+    private static final byte RECORD_END = 0;
+
+    private final ConcurrentSkipListMap<String, FileEntry> entries = new ConcurrentSkipListMap<>();
+    private final AtomicLong versions = new AtomicLong();
+    private final File snapshotFile;
+    private final File journalFile;
+    private final File rotatedJournalFile;
+    private final Object journalLock = new Object();
+    private FileOutputStream journalOutput; // pour forcer le journal sur le disque
+    private DataOutputStream journal;
+    private long journalRecords;
+
+    Catalog(File directory) {
+        directory.mkdirs();
+        this.snapshotFile = new File(directory, "catalog.snapshot");
+        this.journalFile = new File(directory, "catalog.journal");
+        this.rotatedJournalFile = new File(directory, "catalog.journal.old");
+    }
+
+    /** Vrai si aucun catalogue n'a encore été écrit dans ce répertoire. */
+    boolean isNew() {
+        return !snapshotFile.exists() && !journalFile.exists() && !rotatedJournalFile.exists();
+    }
+
+    /** Charge l'instantané puis rejoue les journaux, et compacte le tout. */
+    void load() throws IOException {
+        if (snapshotFile.exists()) {
+            try (DataInputStream in = open(snapshotFile)) {
+                if (in.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Instantané du catalogue invalide: " + snapshotFile);
+                }
+                replay(in);
+            }
+        }
+        for (File file : new File[] { rotatedJournalFile, journalFile }) {
+            if (file.exists()) {
+                try (DataInputStream in = open(file)) {
+                    replay(in);
+                }
+            }
+        }
+        synchronized (journalLock) {
+            openJournal();
+        }
+        snapshot();
+    }
+
+    FileEntry get(String name) {
+        return entries.get(name);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /** Noms triés, pour le parcours par page. */
+    NavigableSet<String> names() {
+        return entries.keySet();
+    }
+
+    /** Entrées triées par nom. */
+    Collection<FileEntry> entries() {
+        return entries.values();
+    }
+
+    /**
+     * Vrai si le nom peut être stocké : il passe par writeUTF vers les slaves, suffixes de version et de chunk
+     * compris, et dans les journaux (65535 octets en UTF-8 modifié). Les champs texte du protocole v2 vont
+     * plus loin : un nom plus long est refusé avant que rien ne soit écrit.
+     */
+    static boolean isStorableName(String name) {
+        long length = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        return length <= MAX_UTF_LENGTH - STORED_SUFFIX_LENGTH;
+    }
+
+    /** Nom sous lequel les chunks d'une version d'un fichier sont stockés sur les slaves. */
+    static String storedName(String name, long version) {
+        return name + ".v" + version;
+    }
+
+    /** Version d'un nom stocké sur les slaves (voir {@link #storedName}), 0 si le nom n'en porte pas. */
+    static long storedVersion(String storedName) {
+        int suffix = storedName.lastIndexOf(".v");
+        int digits = storedName.length() - suffix - 2;
+        if (suffix <= 0 || digits < 1 || digits > 18) {
+            return 0;
+        }
+        for (int i = suffix + 2; i < storedName.length(); i++) {
+            if (storedName.charAt(i) < '0' || storedName.charAt(i) > '9') {
+                return 0;
+            }
+        }
+        return Long.parseLong(storedName.substring(suffix + 2));
+    }
+
+    /** Réserve une version, avant l'écriture de ses chunks sous {@link #storedName}. */
+    long nextVersion() {
+        return versions.incrementAndGet();
+    }
+
+    /** Les versions réservées ensuite dépasseront version (sessions d'upload reprises au démarrage). */
+    void reserveVersions(long version) {
+        versions.accumulateAndGet(version, Math::max);
+    }
+
+    /**
+     * Enregistre un fichier dont les chunks ont été écrits sous la version donnée (nouveau ou remplacé) ;
+     * renvoie l'entrée remplacée, ou null.
+     */
+    FileEntry put(String name, long size, long chunkSize, int[] chunkSlaves, int[] chunkCrcs, long version)
+            throws IOException {
+        versions.accumulateAndGet(version, Math::max); // version retrouvée sur les slaves (import)
+        return put(new FileEntry(name, size, chunkSize, chunkSlaves, chunkCrcs, System.currentTimeMillis(),
+                version));
+    }
+
+    /**
+     * Enregistre les petits fichiers d'un lot groupé dans un segment d'un slave, en un seul passage du
+     * journal (forcé une fois) ; renvoie les entrées remplacées.
+     */
+    List<FileEntry> putPacked(List<String> names, List<Long> sizes, int slave, int segment, List<Long> offsets,
+            List<Integer> crcs) throws IOException {
+        List<FileEntry> replaced = new ArrayList<>();
+        synchronized (journalLock) {
+            for (int i = 0; i < names.size(); i++) {
+                long size = sizes.get(i);
+                FileEntry entry = new FileEntry(names.get(i), size, slave, System.currentTimeMillis(),
+                        versions.incrementAndGet(), segment, offsets.get(i), crcs.get(i));
+                FileEntry previous = entries.put(entry.name, entry);
+                if (previous != null) {
+                    replaced.add(previous);
+                }
+                writeEntry(journal, entry);
+                journalRecords++;
+            }
+            sync();
+        }
+        return replaced;
+    }
+
+    private FileEntry put(FileEntry entry) throws IOException {
+        synchronized (journalLock) {
+            FileEntry replaced = entries.put(entry.name, entry);
+            writeEntry(journal, entry);
+            appended();
+            // La même version réécrite (validation rejouée après un arrêt) ne remplace rien
+            return replaced != null && replaced.version == entry.version && !replaced.isPacked() ? null : replaced;
+        }
+    }
+
+    FileEntry remove(String name) throws IOException {
+        synchronized (journalLock) {
+            FileEntry removed = entries.remove(name);
+            if (removed != null) {
+                journal.writeByte(RECORD_DELETE);
+                journal.writeUTF(name);
+                appended();
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * Retire plusieurs noms en un seul passage : les enregistrements sont écrits d'un bloc et le journal
+     * n'est vidé et forcé qu'une fois. Renvoie les entrées retirées ; les noms absents n'y figurent pas.
+     */
+    Map<String, FileEntry> removeAll(Collection<String> names) throws IOException {
+        Map<String, FileEntry> removed = new HashMap<>();
+        synchronized (journalLock) {
+            for (String name : names) {
+                FileEntry entry = entries.remove(name);
+                if (entry != null) {
+                    removed.put(name, entry);
+                    journal.writeByte(RECORD_DELETE);
+                    journal.writeUTF(name);
+                    journalRecords++;
+                }
+            }
+            sync();
+        }
+        return removed;
+    }
+
+    /** Nombre d'enregistrements écrits depuis le dernier instantané. */
+    long journalRecords() {
+        synchronized (journalLock) {
+            return journalRecords;
+        }
+    }
+
+    /**
+     * Écrit un instantané du catalogue et repart d'un journal vide. Le journal courant est d'abord
+     * mis de côté ; il n'est supprimé qu'une fois l'instantané renommé en place.
+     */
+    void snapshot() throws IOException {
+        synchronized (journalLock) {
+            journal.close();
+            if (rotatedJournalFile.exists()) {
+                // Reste d'un instantané interrompu : on le complète avec le journal courant
+                try (OutputStream out = new FileOutputStream(rotatedJournalFile, true)) {
+                    Files.copy(journalFile.toPath(), out);
+                }
+                Files.delete(journalFile.toPath());
+            } else if (journalFile.exists()) {
+                Files.move(journalFile.toPath(), rotatedJournalFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            openJournal();
+            journalRecords = 0;
+        }
+
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        FileOutputStream file = new FileOutputStream(tempFile);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1024 * 1024))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            for (FileEntry entry : entries.values()) {
+                writeEntry(out, entry);
+            }
+            out.writeByte(RECORD_END);
+            out.flush();
+            file.getChannel().force(false); // l'instantané est complet sur le disque avant de remplacer l'ancien
+        }
+        Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(rotatedJournalFile.toPath());
+    }
+
+    private void openJournal() throws IOException {
+        journalOutput = new FileOutputStream(journalFile, true);
+        journal = new DataOutputStream(new BufferedOutputStream(journalOutput));
+    }
+
+    private void appended() throws IOException {
+        sync();
+        journalRecords++;
+    }
+
+    /** Vide le journal et le force sur le disque : l'écriture n'est confirmée qu'ensuite. */
+    private void sync() throws IOException {
+        journal.flush();
+        journalOutput.getChannel().force(false);
+    }
+
+    private void replay(DataInputStream in) throws IOException {
+        while (true) {
+            byte type;
+            try {
+                type = in.readByte();
+            } catch (EOFException e) {
+                return;
+            }
+            try {
+                if (type == RECORD_PUT || type == RECORD_PUT_PACKED) {
+                    FileEntry entry = readEntry(in, type);
+                    entries.put(entry.name, entry);
+                    versions.accumulateAndGet(entry.version, Math::max);
+                } else if (type == RECORD_DELETE) {
+                    entries.remove(in.readUTF());
+                } else {
+                    return;
+                }
+            } catch (EOFException e) {
+                return; // dernier enregistrement incomplet (arrêt brutal) : ignoré
+            }
+        }
+    }
+
+    /** Enregistrement complet d'une entrée, type compris. */
+    private static void writeEntry(DataOutputStream out, FileEntry entry) throws IOException {
+        out.writeByte(entry.isPacked() ? RECORD_PUT_PACKED : RECORD_PUT);
+        out.writeUTF(entry.name);
+        out.writeLong(entry.size);
+        out.writeLong(entry.chunkSize);
+        out.writeLong(entry.modified);
+        out.writeLong(entry.version);
+        out.writeInt(entry.chunkSlaves.length);
+        for (int slave : entry.chunkSlaves) {
+            out.writeShort(slave);
+        }
+        if (entry.isPacked()) {
+            out.writeInt(entry.packSegment);
+            out.writeLong(entry.packOffset);
+            out.writeInt(entry.packCrc);
+        } else {
+            for (int crc : entry.chunkCrcs) {
+                out.writeInt(crc);
+            }
+        }
+    }
+
+    private static FileEntry readEntry(DataInputStream in, byte type) throws IOException {
+        String name = in.readUTF();
+        long size = in.readLong();
+        long chunkSize = in.readLong();
+        long modified = in.readLong();
+        long version = in.readLong();
+        int[] chunkSlaves = new int[in.readInt()];
+        for (int i = 0; i < chunkSlaves.length; i++) {
+            chunkSlaves[i] = in.readShort();
+        }
+        if (type == RECORD_PUT_PACKED) {
+            return new FileEntry(name, size, chunkSlaves[0], modified, version, in.readInt(), in.readLong(),
+                    in.readInt());
+        }
+        int[] chunkCrcs = new int[chunkSlaves.length];
+        for (int i = 0; i < chunkCrcs.length; i++) {
+            chunkCrcs[i] = in.readInt();
+        }
+        return new FileEntry(name, size, chunkSize, chunkSlaves, chunkCrcs, modified, version);
+    }
+
+    private static DataInputStream open(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 1024));
+    }
+}
@@ -0,0 +1,66 @@
+package serveur;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Pied écrit à la fin de chaque fichier de chunk : CRC32C des données d'origine, indicateurs,
+ * taille d'origine et marque. Un fichier de chunk sans pied valide est refusé.
+ */
+final class ChunkFooter {
+    static final int SIZE = 24;
+    static final int FLAG_FRAMED = 1; // données stockées en trames compressées (ChunkFrames)
+    private static final long MAGIC = 0x444E54464F4F5432L; // "DNTFOOT2"
+
+    final int crc;
+    final int flags;
+    final long length; // taille des données d'origine
+    final long storedLength; // octets de données dans le fichier, pied exclu
+
+    ChunkFooter(int crc, int flags, long length, long storedLength) {
+        this.crc = crc;
+        this.flags = flags;
+        this.length = length;
+        this.storedLength = storedLength;
+    }
+
+    boolean isFramed() {
+        return (flags & FLAG_FRAMED) != 0;
+    }
+
+    /** Pied du chunk ; IOException si le fichier n'en a pas. */
+    static ChunkFooter read(FileChannel part) throws IOException {
+        long size = part.size();
+        if (size < SIZE) {
+            throw new IOException("Chunk sans pied (" + size + " octets)");
+        }
+        ByteBuffer footer = ByteBuffer.allocate(SIZE);
+        long start = size - SIZE;
+        while (footer.hasRemaining()) {
+            if (part.read(footer, start + footer.position()) < 0) {
+                throw new EOFException("Pied de chunk tronqué");
+            }
+        }
+        footer.flip();
+        if (footer.getLong(16) != MAGIC) {
+            throw new IOException("Pied de chunk invalide");
+        }
+        return new ChunkFooter(footer.getInt(0), footer.getInt(4), footer.getLong(8), size - SIZE);
+    }
+
+    /** Écrit le pied à la position donnée (fin des données stockées). */
+    void write(FileChannel part, long position) throws IOException {
+        ByteBuffer footer = ByteBuffer.allocate(SIZE);
+        footer.putInt(crc).putInt(flags).putLong(length).putLong(MAGIC).flip();
+        while (footer.hasRemaining()) {
+            part.write(footer, position + footer.position());
+        }
+    }
+
+    /** Taille des données d'origine d'un fichier de chunk. */
+    static long dataLength(FileChannel part) throws IOException {
+        return read(part).length;
+    }
+}
@@ -0,0 +1,92 @@
+package client;
+
+import java.io.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Octets d'origine d'un chunk compressé lu directement sur son slave : une suite de trames
+ * [taille d'origine][taille stockée][octets], chacune d'au plus {@link #MAX_FRAME} octets d'origine,
+ * stockée telle quelle si la taille stockée égale la taille d'origine. Même format que les trames
+ * écrites par les slaves (serveur.ChunkFrames), décodé ici sans dépendre du serveur.
+ */
+final class ChunkFrameInput extends InputStream {
+    private static final int MAX_FRAME = 64 * 1024;
+
+    private final DataInputStream in;
+    private final Inflater inflater = new Inflater();
+    private final byte[] stored = new byte[MAX_FRAME];
+    private final byte[] raw = new byte[MAX_FRAME];
+    private long remaining;
+    private int position;
+    private int limit;
+
+    ChunkFrameInput(DataInputStream in, long rawLength) {
+        this.in = in;
+        this.remaining = rawLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (position == limit) {
+            if (remaining == 0) {
+                return -1;
+            }
+            nextFrame();
+        }
+        int count = Math.min(len, limit - position);
+        System.arraycopy(raw, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    private void nextFrame() throws IOException {
+        int rawLength = in.readInt();
+        int storedLength = in.readInt();
+        if (rawLength <= 0 || rawLength > MAX_FRAME || storedLength <= 0 || storedLength > rawLength
+                || rawLength > remaining) {
+            throw new IOException("En-tête de trame invalide (" + rawLength + "/" + storedLength + ")");
+        }
+        remaining -= rawLength;
+        if (storedLength == rawLength) {
+            in.readFully(raw, 0, rawLength);
+        } else {
+            in.readFully(stored, 0, storedLength);
+            inflate(storedLength, rawLength);
+        }
+        position = 0;
+        limit = rawLength;
+    }
+
+    private void inflate(int storedLength, int rawLength) throws IOException {
+        inflater.reset();
+        inflater.setInput(stored, 0, storedLength);
+        try {
+            int produced = 0;
+            while (produced < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(raw, produced, rawLength - produced);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                produced += n;
+            }
+            if (produced != rawLength) {
+                throw new IOException("Trame compressée invalide (" + produced + "/" + rawLength + " octets)");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Trame compressée invalide: " + e.getMessage(), e);
+        }
+    }
+
+    /** Libère le décompresseur sans fermer la connexion. */
+    @Override
+    public void close() {
+        inflater.end();
+    }
+}
@@ -0,0 +1,205 @@
+package serveur;
+
+import java.io.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Chunks compressés : une suite de trames [taille d'origine][taille stockée][octets], chacune couvrant
+ * au plus {@link #MAX_FRAME} octets d'origine. Une trame dont la compression ne fait rien gagner est
+ * stockée telle quelle (taille stockée = taille d'origine). Le même format sert sur le réseau et sur
+ * le disque des slaves, ce qui permet de transmettre un chunk compressé sans le décompresser.
+ * Le client décode ces trames de son côté (client.ChunkFrameInput), pour une lecture directe sur un slave.
+ */
+final class ChunkFrames {
+    static final int MAX_FRAME = 64 * 1024;
+    static final int HEADER_SIZE = 8;
+    private static final int SAMPLE_SIZE = 4096;
+    private static final double MIN_GAIN = 0.9; // l'échantillon compressé doit faire moins de 90 %
+
+    private ChunkFrames() {
+    }
+
+    /**
+     * Vrai si les données semblent compressibles : seul le début est essayé, pour écarter sans frais
+     * les contenus déjà compressés (archives, médias).
+     */
+    static boolean worthCompressing(byte[] data, int length) {
+        int sample = Math.min(length, SAMPLE_SIZE);
+        if (sample == 0) {
+            return false;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data, 0, sample);
+            deflater.finish();
+            byte[] out = new byte[sample + 64];
+            int compressed = 0;
+            while (!deflater.finished() && compressed < out.length) {
+                compressed += deflater.deflate(out, compressed, out.length - compressed);
+            }
+            return deflater.finished() && compressed < sample * MIN_GAIN;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Écrit des trames compressées ; à fermer pour libérer le compresseur. */
+    static final class Writer implements Closeable {
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final byte[] compressed = new byte[MAX_FRAME + 1024];
+
+        /** Écrit une ou plusieurs trames pour data[offset, offset + length) ; renvoie les octets écrits. */
+        long write(DataOutputStream out, byte[] data, int offset, int length) throws IOException {
+            long written = 0;
+            while (length > 0) {
+                int rawLength = Math.min(length, MAX_FRAME);
+                deflater.reset();
+                deflater.setInput(data, offset, rawLength);
+                deflater.finish();
+                int storedLength = 0;
+                while (!deflater.finished() && storedLength < rawLength) {
+                    storedLength += deflater.deflate(compressed, storedLength, compressed.length - storedLength);
+                }
+
+                out.writeInt(rawLength);
+                if (deflater.finished() && storedLength < rawLength) {
+                    out.writeInt(storedLength);
+                    out.write(compressed, 0, storedLength);
+                } else {
+                    storedLength = rawLength;
+                    out.writeInt(rawLength);
+                    out.write(data, offset, rawLength);
+                }
+                written += HEADER_SIZE + storedLength;
+                offset += rawLength;
+                length -= rawLength;
+            }
+            return written;
+        }
+
+        @Override
+        public void close() {
+            deflater.end();
+        }
+    }
+
+    /** Rend les octets d'origine d'une trame stockée. */
+    static void decode(Inflater inflater, byte[] stored, int storedLength, byte[] raw, int rawLength)
+            throws IOException {
+        if (storedLength == rawLength) {
+            System.arraycopy(stored, 0, raw, 0, rawLength);
+            return;
+        }
+        inflater.reset();
+        inflater.setInput(stored, 0, storedLength);
+        try {
+            int produced = 0;
+            while (produced < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(raw, produced, rawLength - produced);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                produced += n;
+            }
+            if (produced != rawLength) {
+                throw new IOException("Trame compressée invalide (" + produced + "/" + rawLength + " octets)");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Trame compressée invalide: " + e.getMessage(), e);
+        }
+    }
+
+    /** Lit l'en-tête d'une trame et vérifie ses tailles ; renvoie {taille d'origine, taille stockée}. */
+    static int[] readHeader(DataInput in) throws IOException {
+        int rawLength = in.readInt();
+        int storedLength = in.readInt();
+        if (rawLength <= 0 || rawLength > MAX_FRAME || storedLength <= 0 || storedLength > rawLength) {
+            throw new IOException("En-tête de trame invalide (" + rawLength + "/" + storedLength + ")");
+        }
+        return new int[] { rawLength, storedLength };
+    }
+
+    /** Flux des octets d'origine d'un chunk compressé de taille connue. */
+    static final class Input extends InputStream {
+        private final DataInputStream in;
+        private final Inflater inflater = new Inflater();
+        private final byte[] stored = new byte[MAX_FRAME];
+        private final byte[] raw = new byte[MAX_FRAME];
+        private long remaining;
+        private int position;
+        private int limit;
+
+        Input(DataInputStream in, long rawLength) {
+            this.in = in;
+            this.remaining = rawLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position == limit) {
+                if (remaining == 0) {
+                    return -1;
+                }
+                int[] header = nextHeader();
+                in.readFully(stored, 0, header[1]);
+                decode(inflater, stored, header[1], raw, header[0]);
+                position = 0;
+                limit = header[0];
+            }
+            int count = Math.min(len, limit - position);
+            System.arraycopy(raw, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        /** Saute n octets d'origine ; les trames entièrement sautées ne sont pas décompressées. */
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n) {
+                if (position < limit) {
+                    int step = (int) Math.min(n - skipped, limit - position);
+                    position += step;
+                    skipped += step;
+                    continue;
+                }
+                if (remaining == 0) {
+                    break;
+                }
+                int[] header = nextHeader();
+                in.readFully(stored, 0, header[1]);
+                if (header[0] <= n - skipped) {
+                    skipped += header[0];
+                } else {
+                    decode(inflater, stored, header[1], raw, header[0]);
+                    position = 0;
+                    limit = header[0];
+                }
+            }
+            return skipped;
+        }
+
+        private int[] nextHeader() throws IOException {
+            int[] header = readHeader(in);
+            if (header[0] > remaining) {
+                throw new IOException("Trame au-delà de la fin du chunk");
+            }
+            remaining -= header[0];
+            return header;
+        }
+
+        /** Libère le décompresseur sans fermer le flux sous-jacent (connexion réutilisée). */
+        @Override
+        public void close() {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package serveur;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Index en mémoire des chunks stockés par un slave (nom du fichier du chunk → taille des données,
+ * sans le pied {@link ChunkFooter}).
+ * Construit une fois au démarrage puis tenu à jour à chaque écriture et suppression ;
+ * LIST, les tests d'existence et les tailles ne parcourent plus le répertoire.
+ *
+ * L'index est enregistré à l'arrêt normal du slave et relu au démarrage suivant. Le fichier est
+ * supprimé dès sa lecture : après un arrêt brutal il manque, et le répertoire est reparcouru.
+ */
+class ChunkIndex {
+    private static final String INDEX_FILE = ".chunk-index";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final String chunkSuffix;
+    private final ConcurrentSkipListMap<String, Long> chunks = new ConcurrentSkipListMap<>();
+
+    ChunkIndex(File directory, String chunkSuffix) {
+        this.directory = directory;
+        this.chunkSuffix = chunkSuffix;
+    }
+
+    /** Charge l'index enregistré s'il existe, sinon parcourt le répertoire. */
+    void load() throws IOException {
+        File indexFile = new File(directory, INDEX_FILE);
+        if (indexFile.exists()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(indexFile), 1024 * 1024))) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String name = in.readUTF();
+                    chunks.put(name, in.readLong());
+                }
+                Files.delete(indexFile.toPath());
+                return;
+            } catch (IOException e) {
+                System.err.println("Index illisible, parcours du répertoire: " + e.getMessage());
+                chunks.clear();
+                Files.deleteIfExists(indexFile.toPath());
+            }
+        }
+        scan();
+    }
+
+    /** Enregistre l'index pour le prochain démarrage (arrêt normal uniquement). */
+    void save() throws IOException {
+        File tempFile = new File(directory, INDEX_FILE + TEMP_SUFFIX);
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(chunks.entrySet());
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile), 1024 * 1024))) {
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Long> entry : entries) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        }
+        Files.move(tempFile.toPath(), new File(directory, INDEX_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    void put(String fileName, int chunkIndex, long size) {
+        chunks.put(fileName + chunkSuffix + chunkIndex, size);
+    }
+
+    boolean remove(String fileName, int chunkIndex) {
+        return chunks.remove(fileName + chunkSuffix + chunkIndex) != null;
+    }
+
+    /** Taille d'un chunk, ou -1 s'il n'est pas stocké ici. */
+    long size(String fileName, int chunkIndex) {
+        Long size = chunks.get(fileName + chunkSuffix + chunkIndex);
+        return size != null ? size : -1;
+    }
+
+    /** Chunks d'un fichier (numéro → taille), par parcours de la seule plage du préfixe. */
+    Map<Integer, Long> chunks(String fileName) {
+        String prefix = fileName + chunkSuffix;
+        Map<Integer, Long> result = new TreeMap<>();
+        for (Map.Entry<String, Long> entry : chunks.subMap(prefix, prefix + Character.MAX_VALUE).entrySet()) {
+            int chunkIndex = parseIndex(entry.getKey(), prefix.length());
+            if (chunkIndex >= 0) {
+                result.put(chunkIndex, entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /** Noms des fichiers de chunks, triés. */
+    NavigableSet<String> names() {
+        return chunks.keySet();
+    }
+
+    int size() {
+        return chunks.size();
+    }
+
+    private void scan() {
+        scan(directory, "");
+    }
+
+    /** Parcours récursif : les fichiers reçus dans un dossier gardent leur chemin logique. */
+    private void scan(File dir, String path) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = path + file.getName();
+            if (file.isDirectory()) {
+                if (!name.equals(PackStore.DIRECTORY)) {
+                    scan(file, name + "/");
+                }
+                continue;
+            }
+            if (name.endsWith(TEMP_SUFFIX)) {
+                file.delete(); // chunk incomplet laissé par un arrêt brutal
+                continue;
+            }
+            int suffix = name.lastIndexOf(chunkSuffix);
+            if (suffix > 0 && parseIndex(name, suffix + chunkSuffix.length()) >= 0) {
+                try (FileChannel part = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    chunks.put(name, ChunkFooter.dataLength(part));
+                } catch (IOException e) {
+                    System.err.println("Chunk illisible ignoré: " + name + " (" + e.getMessage() + ")");
+                }
+            }
+        }
+    }
+
+    /** Numéro de chunk écrit à partir de start, ou -1 si le reste du nom n'est pas un nombre. */
+    private static int parseIndex(String name, int start) {
+        if (start >= name.length() || name.length() - start > 9) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
@@ -0,0 +1,113 @@
+package serveur;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+
+/**
+ * Décodage incrémental d'un en-tête de commande à partir des octets reçus en mode non bloquant.
+ * Le format est celui de DataOutputStream : nom de la commande en writeUTF, puis les champs
+ * d'en-tête propres à la commande. Le corps éventuel (données d'un fichier) n'est pas attendu.
+ */
+class CommandDecoder {
+    private static final int INITIAL_CAPACITY = 512;
+    private static final int MAX_HEADER_SIZE = 256 * 1024;
+
+    private final Map<String, String> headers;
+    private ByteBuffer buffer;
+    private int parsed; // octets déjà reconnus comme champs complets
+    private String command;
+    private String fields;
+    private int fieldIndex;
+
+    CommandDecoder(Map<String, String> headers, byte[] initial) {
+        this.headers = headers;
+        this.buffer = ByteBuffer.allocate(Math.max(INITIAL_CAPACITY, initial.length));
+        this.buffer.put(initial);
+    }
+
+    /** Lit les octets disponibles ; renvoie false si le client a fermé la connexion. */
+    boolean readFrom(SocketChannel channel) throws IOException {
+        if (!buffer.hasRemaining()) {
+            if (buffer.capacity() >= MAX_HEADER_SIZE) {
+                throw new IOException("En-tête de commande trop long");
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(MAX_HEADER_SIZE, buffer.capacity() * 2));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        return channel.read(buffer) >= 0;
+    }
+
+    /** Vrai dès que le nom de la commande et tous ses champs d'en-tête sont arrivés. */
+    boolean isComplete() throws IOException {
+        if (command == null) {
+            int length = fieldLength('U', parsed);
+            if (length < 0) {
+                return false;
+            }
+            command = decodeUtf(parsed, length);
+            parsed += length;
+            // Commande inconnue : elle est transmise telle quelle, le traitement y répondra
+            fields = headers.getOrDefault(command, "");
+        }
+        while (fieldIndex < fields.length()) {
+            int length = fieldLength(fields.charAt(fieldIndex), parsed);
+            if (length < 0) {
+                return false;
+            }
+            parsed += length;
+            fieldIndex++;
+        }
+        return true;
+    }
+
+    String command() {
+        return command;
+    }
+
+    /** Octets reçus après le nom de la commande, à rejouer devant le flux de la connexion. */
+    byte[] remaining() {
+        int start = parsedCommandLength();
+        byte[] rest = new byte[buffer.position() - start];
+        System.arraycopy(buffer.array(), start, rest, 0, rest.length);
+        return rest;
+    }
+
+    private int parsedCommandLength() {
+        return 2 + (((buffer.array()[0] & 0xFF) << 8) | (buffer.array()[1] & 0xFF));
+    }
+
+    /** Taille du champ commençant à offset, ou -1 s'il n'est pas encore entièrement reçu. */
+    private int fieldLength(char type, int offset) {
+        int available = buffer.position() - offset;
+        int length;
+        switch (type) {
+            case 'U':
+                if (available < 2) {
+                    return -1;
+                }
+                byte[] bytes = buffer.array();
+                length = 2 + (((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF));
+                break;
+            case 'I':
+                length = 4;
+                break;
+            case 'L':
+                length = 8;
+                break;
+            case 'Z':
+                length = 1;
+                break;
+            default:
+                throw new IllegalArgumentException("Type de champ inconnu: " + type);
+        }
+        return available >= length ? length : -1;
+    }
+
+    private String decodeUtf(int offset, int length) throws IOException {
+        return new DataInputStream(new ByteArrayInputStream(buffer.array(), offset, length)).readUTF();
+    }
+}
@@ -6,10 +6,12 @@ import java.io.*;
 import java.net.*;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
 
 public class CommandLineClient {
     private FileClient client;
     private boolean isConnected;
+    private static final int LIST_PAGE_SIZE = 1000;
     private Scanner scanner;
 
     public CommandLineClient() {
@@ -49,7 +51,12 @@ public class CommandLineClient {
                         break;
                     case "ls":
                         if (checkConnection()) {
-                            handleList();
+                            handleList(args);
+                        }
+                        break;
+                    case "stats":
+                        if (checkConnection()) {
+                            handleStats();
                         }
                         break;
                     case "help":
@@ -67,22 +74,80 @@ public class CommandLineClient {
         }
     }
 
-    private void handleList() {
-        List<String> files = client.listFiles();
-        System.out.println("Contenu du serveur (" + files.size() + " éléments):");
-        for (String file : files) {
-            System.out.println("  " + file);
+    private void handleList(String pattern) throws IOException {
+        // Affichage page par page : la liste complète n'est jamais gardée en mémoire
+        System.out.println("Contenu du serveur:");
+        long total = 0;
+        String token = "";
+        do {
+            List<String> page = new ArrayList<>();
+            token = client.listPage(pattern, token, LIST_PAGE_SIZE, page);
+            for (String file : page) {
+                System.out.println("  " + file);
+            }
+            total += page.size();
+        } while (!token.isEmpty());
+        System.out.println("(" + total + " éléments)");
+    }
+
+    private void handleStats() {
+        List<String> stats = client.getServerStats();
+        System.out.println("Statistiques du serveur:");
+        for (String stat : stats) {
+            System.out.println("  " + stat);
         }
     }
 
-    private void handleDelete(String fileName) {
-        if (fileName.isEmpty()) {
-            System.out.println("Usage: delete <nom_fichier>");
+    private void handleDelete(String args) throws IOException {
+        if (args.isEmpty() || args.equals("-l")) {
+            System.out.println("Usage: delete <nom_fichier|motif> | delete -l <fichier_de_noms>");
             return;
         }
 
-        System.out.println("Suppression de : " + fileName);
-        client.deleteFromServer(fileName);
+        // Option -l <fichier> : un nom par ligne, supprimés en une seule requête
+        if (args.startsWith("-l ")) {
+            List<String> names = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new FileReader(args.substring(3).trim()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.trim().isEmpty()) {
+                        names.add(line.trim());
+                    }
+                }
+            }
+            System.out.println("Suppression de " + names.size() + " noms");
+            printDeleteResults(client.deleteFiles(names));
+            return;
+        }
+        if (args.indexOf('*') >= 0 || args.indexOf('?') >= 0) {
+            System.out.println("Suppression des fichiers correspondant à : " + args);
+            printDeleteResults(client.deleteMatching(args));
+            return;
+        }
+
+        System.out.println("Suppression de : " + args);
+        String status = client.deleteFromServer(args);
+        if (!status.equals("OK")) {
+            System.out.println(status.equals("ABSENT") ? "Introuvable sur le serveur : " + args : status);
+        }
+    }
+
+    /** Affiche les noms en erreur puis le bilan d'une suppression groupée. */
+    private void printDeleteResults(Map<String, String> results) {
+        int deleted = 0;
+        int absent = 0;
+        int failed = 0;
+        for (Map.Entry<String, String> result : results.entrySet()) {
+            if (result.getValue().equals("OK")) {
+                deleted++;
+            } else if (result.getValue().equals("ABSENT")) {
+                absent++;
+            } else {
+                failed++;
+                System.out.println("  " + result.getKey() + " : " + result.getValue());
+            }
+        }
+        System.out.println(deleted + " supprimés, " + absent + " absents, " + failed + " en erreur");
     }
 
     private void handleConnect(String args) {
@@ -112,9 +177,30 @@ public class CommandLineClient {
         }
     }
 
-    private void handlePut(String path) {
+    private void handlePut(String args) {
+        // Option -j <n> : nombre de connexions parallèles pour un fichier
+        int streams = 1;
+        String path = args;
+        String[] putArgs = args.split("\\s+", 3);
+        if (putArgs[0].equals("-j")) {
+            if (putArgs.length < 3) {
+                System.out.println("Usage: put [-j <flux>] <chemin>");
+                return;
+            }
+            try {
+                streams = Integer.parseInt(putArgs[1]);
+            } catch (NumberFormatException e) {
+                streams = 0;
+            }
+            if (streams < 1) {
+                System.out.println("Le nombre de flux doit être un entier positif");
+                return;
+            }
+            path = putArgs[2];
+        }
+
         if (path.isEmpty()) {
-            System.out.println("Usage: upload <chemin_fichier>");
+            System.out.println("Usage: put [-j <flux>] <chemin>");
             return;
         }
 
@@ -125,13 +211,31 @@ public class CommandLineClient {
         }
 
         System.out.println("Upload en cours de: " + path);
-        client.uploadFileOrDir(file);
+        if (file.isFile()) {
+            client.uploadFileChunked(file, streams);
+        } else {
+            client.uploadFileOrDir(file);
+        }
     }
 
     private void handleGet(String args) {
+        // Option -j <n> : lecture directe des chunks sur les slaves, par n connexions
+        int streams = 0;
         String[] downloadArgs = args.split("\\s+");
+        if (downloadArgs.length == 4 && downloadArgs[0].equals("-j")) {
+            try {
+                streams = Integer.parseInt(downloadArgs[1]);
+            } catch (NumberFormatException e) {
+                streams = 0;
+            }
+            if (streams < 1) {
+                System.out.println("Le nombre de flux doit être un entier positif");
+                return;
+            }
+            downloadArgs = new String[] { downloadArgs[2], downloadArgs[3] };
+        }
         if (downloadArgs.length != 2) {
-            System.out.println("Usage: download <nom_fichier> <destination>");
+            System.out.println("Usage: get [-j <flux>] <nom_fichier> <destination>");
             return;
         }
 
@@ -144,6 +248,15 @@ public class CommandLineClient {
         }
 
         System.out.println("Téléchargement de: " + fileName);
+        if (streams > 0) {
+            if (client.downloadDirect(fileName, destinationDir, streams)) {
+                return;
+            }
+            System.out.println("Téléchargement par le serveur principal");
+            // Dossier : -j fixe le nombre de threads d'écriture
+            client.downloadFromServer(fileName, destinationDir, streams);
+            return;
+        }
         client.downloadFromServer(fileName, destinationDir);
     }
 
@@ -158,10 +271,12 @@ public class CommandLineClient {
     private void showHelp() {
         System.out.println("Commandes disponibles:");
         System.out.println("  connect <address> <port>  - Se connecter au serveur");
-        System.out.println("  put <chemin>          - Uploader un fichier ou dossier");
-        System.out.println("  get <nom> <dest>    - Télécharger un fichier ou dossier");
-        System.out.println("  delete <nom>            - Supprimer un fichier ou dossier");
-        System.out.println("  ls                       - Lister les fichiers sur le serveur");
+        System.out.println("  put [-j <flux>] <chemin> - Uploader un fichier ou dossier (fichier : flux parallèles)");
+        System.out.println("  get [-j <flux>] <nom> <dest> - Télécharger un fichier ou dossier (-j : lecture directe sur les slaves)");
+        System.out.println("  delete <nom|motif>       - Supprimer un fichier, ou tous ceux d'un motif glob * ?");
+        System.out.println("  delete -l <fichier>      - Supprimer en une requête les noms listés (un par ligne)");
+        System.out.println("  ls [motif]               - Lister les fichiers sur le serveur (préfixe ou glob * ?)");
+        System.out.println("  stats                    - Afficher les statistiques du serveur");
         System.out.println("  help                     - Afficher cette aide");
         System.out.println("  exit                     - Quitter le programme");
     }
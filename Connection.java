@@ -0,0 +1,234 @@
+package serveur;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.zip.Checksum;
+
+/**
+ * Connexion acceptée par un serveur, en mode bloquant pendant le traitement d'une commande.
+ * Les octets déjà lus par le moteur de sélection sont rejoués en tête du flux d'entrée.
+ * Un flux d'une connexion multiplexée (protocole v2) se présente aussi comme une connexion, sans canal.
+ */
+class Connection implements Closeable {
+    static final int BUFFER_SIZE = 64 * 1024;
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+    private static final BlockingQueue<byte[]> COPY_BUFFERS = new LinkedBlockingQueue<>(32);
+    private static final int DIRECT_BUFFER_SIZE = 256 * 1024;
+    private static final BlockingQueue<ByteBuffer> DIRECT_BUFFERS = new LinkedBlockingQueue<>(64);
+    private static final int SMALL_REGION = 16 * 1024; // en dessous, copie par le tampon de sortie
+    private static final int MAX_TEXT = 16 * 1024 * 1024; // champ texte d'un flux v2
+    static boolean zeroCopy = true;
+
+    final SocketChannel channel;
+    final DataInputStream in;
+    final DataOutputStream out;
+    final String peer;
+    private final Input input;
+    private final boolean multiplexed;
+    private volatile boolean detached;
+
+    Connection(SocketChannel channel, byte[] prefix) throws IOException {
+        this.channel = channel;
+        channel.socket().setTcpNoDelay(true); // chaque réponse est vidée explicitement : pas d'attente de Nagle
+        this.input = new Input(channel.socket().getInputStream(), prefix);
+        this.in = new DataInputStream(input);
+        this.out = new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream(), BUFFER_SIZE));
+        this.peer = String.valueOf(channel.socket().getInetAddress());
+        this.multiplexed = false;
+    }
+
+    /** Flux d'une connexion multiplexée : les régions de fichier passent par copie. */
+    Connection(InputStream source, OutputStream sink, String peer) {
+        this.channel = null;
+        this.input = new Input(source, new byte[0]);
+        this.in = new DataInputStream(input);
+        this.out = new DataOutputStream(new BufferedOutputStream(sink, BUFFER_SIZE));
+        this.peer = peer;
+        this.multiplexed = true;
+    }
+
+    /**
+     * Lit un champ texte (nom de fichier, chemin, motif) : writeUTF en protocole v1, [longueur int][UTF-8]
+     * sur un flux v2, sans la limite de 64 Ko de writeUTF. Les mots de statut restent en writeUTF.
+     */
+    String readText() throws IOException {
+        if (!multiplexed) {
+            return in.readUTF();
+        }
+        int length = in.readInt();
+        if (length < 0 || length > MAX_TEXT) {
+            throw new IOException("Champ texte invalide (" + length + " octets)");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Écrit un champ texte, codé comme {@link #readText()}. */
+    void writeText(String text) throws IOException {
+        if (!multiplexed) {
+            out.writeUTF(text);
+            return;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Envoie une région de fichier après ce qui a déjà été écrit sur {@link #out}.
+     * Le noyau copie directement le fichier vers la socket (transferTo) ; si ce n'est pas possible,
+     * la copie passe par un grand tampon réutilisé.
+     */
+    void sendFileRegion(FileChannel file, long position, long count) throws IOException {
+        if (count <= SMALL_REGION) {
+            // Petite région (fichier groupé) : partie avec l'en-tête déjà en tampon, en une seule écriture
+            copyRegion(file, position, count);
+            return;
+        }
+        out.flush();
+        long sent = 0;
+        if (zeroCopy && channel != null) {
+            while (sent < count) {
+                long transferred = file.transferTo(position + sent, count - sent, channel);
+                if (transferred <= 0) {
+                    break; // fin de fichier ou zero-copy indisponible : on termine par copie
+                }
+                sent += transferred;
+            }
+        }
+        if (sent < count) {
+            copyRegion(file, position + sent, count - sent);
+        }
+    }
+
+    private void copyRegion(FileChannel file, long position, long count) throws IOException {
+        byte[] buffer = COPY_BUFFERS.poll();
+        if (buffer == null) {
+            buffer = new byte[COPY_BUFFER_SIZE];
+        }
+        try {
+            long remaining = count;
+            while (remaining > 0) {
+                ByteBuffer view = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, remaining));
+                int read = file.read(view, position + count - remaining);
+                if (read == -1) {
+                    throw new EOFException("Fichier plus court que prévu");
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+            out.flush();
+        } finally {
+            COPY_BUFFERS.offer(buffer);
+        }
+    }
+
+    /**
+     * Écrit dans un fichier les count prochains octets reçus, en calculant au passage leur somme de contrôle.
+     * Les octets déjà en tampon sont écrits d'abord. Ils doivent traverser la mémoire pour être contrôlés :
+     * le reste est lu sur la socket dans un tampon direct réutilisé (sans copie vers le tas), dont la somme
+     * est calculée avant l'écriture.
+     * Renvoie le temps passé à écrire dans le fichier (ns), sans l'attente du réseau.
+     */
+    long receiveFileRegion(FileChannel file, long position, long count, Checksum checksum) throws IOException {
+        long received = 0;
+        long writeNanos = 0;
+        while (received < count && input.buffered() > 0) {
+            byte[] pending = input.drain((int) Math.min(input.buffered(), count - received));
+            checksum.update(pending, 0, pending.length);
+            ByteBuffer view = ByteBuffer.wrap(pending);
+            long start = System.nanoTime();
+            while (view.hasRemaining()) {
+                file.write(view, position + received + view.position());
+            }
+            writeNanos += System.nanoTime() - start;
+            received += pending.length;
+        }
+
+        ByteBuffer buffer = DIRECT_BUFFERS.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+        }
+        try {
+            while (received < count) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count - received));
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Connexion fermée après " + received + "/" + count + " octets");
+                }
+                buffer.flip();
+                checksum.update(buffer.duplicate());
+                long start = System.nanoTime();
+                while (buffer.hasRemaining()) {
+                    file.write(buffer, position + received + buffer.position());
+                }
+                writeNanos += System.nanoTime() - start;
+                received += buffer.limit();
+            }
+        } finally {
+            DIRECT_BUFFERS.offer(buffer);
+        }
+        return writeNanos;
+    }
+
+    /** Octets reçus mais pas encore consommés (début de la commande suivante). */
+    byte[] unreadBytes() {
+        return input.drain();
+    }
+
+    /**
+     * Retire la connexion au moteur qui l'a acceptée : {@link #close()} n'a plus d'effet, la connexion reste
+     * ouverte après la commande et son nouveau propriétaire la ferme par {@link #closeDetached()}.
+     */
+    void detach() {
+        detached = true;
+    }
+
+    void closeDetached() {
+        closeChannel();
+    }
+
+    @Override
+    public void close() {
+        if (channel == null || detached) {
+            return; // flux v2 : fermé par sa session ; connexion v2 : fermée par son lecteur de trames
+        }
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // rien à faire
+        }
+    }
+
+    private static class Input extends BufferedInputStream {
+        Input(InputStream source, byte[] prefix) {
+            super(source, Math.max(BUFFER_SIZE, prefix.length));
+            System.arraycopy(prefix, 0, buf, 0, prefix.length);
+            count = prefix.length;
+        }
+
+        synchronized int buffered() {
+            return count - pos;
+        }
+
+        synchronized byte[] drain() {
+            return drain(count - pos);
+        }
+
+        synchronized byte[] drain(int max) {
+            int length = Math.min(max, count - pos);
+            byte[] rest = Arrays.copyOfRange(buf, pos, pos + length);
+            pos += length;
+            return rest;
+        }
+    }
+}
@@ -2,13 +2,33 @@ package client;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
 
 public class FileClient {
     private String serverAddress;
     private int serverPort;
     private File file;
+    private static final File SESSION_DIR = new File(".dnt_sessions"); // sessions d'upload à reprendre
+    private static final int TREE_WRITERS = 4; // threads d'écriture d'un téléchargement de dossier
+    private static final int TREE_BLOCK_SIZE = 1024 * 1024; // blocs lus sur le réseau pour un dossier
+    private static final int TREE_PENDING_BYTES = 64 * 1024 * 1024; // octets reçus en attente d'écriture
+    private static final int MAX_TEXT = 16 * 1024 * 1024; // champ texte d'un flux v2
+    private static final int SLAVE_CONNECT_TIMEOUT = 5000; // connexion directe à un slave (ms)
+    private static final int SLAVE_READ_TIMEOUT = 30000; // attente des octets d'un slave en lecture directe (ms)
+    private MultiplexedConnection multiplexed; // connexion v2 partagée par les commandes, null en v1
 
     public FileClient(String address, int port) {
         this.serverAddress = address;
@@ -20,17 +40,26 @@ public class FileClient {
     }
 
     public void uploadFileOrDir(File fileToUpload) {
-        try (Socket socket = new Socket(serverAddress, serverPort);
-             DataOutputStream request = new DataOutputStream(socket.getOutputStream());) // mandefa flux
-        {
+        // Requête tamponnée : un dossier de petits fichiers part en grandes écritures
+        try (Exchange exchange = openTransfer("UPLOAD")) {
+            DataOutputStream request = exchange.request; // mandefa flux
+            DataInputStream response = exchange.response;
 
-            request.writeUTF("UPLOAD");
             request.writeBoolean(fileToUpload.isDirectory());
 
             if (fileToUpload.isDirectory()) {
-                uploadDirectory(request, fileToUpload);
+                uploadDirectory(exchange, fileToUpload);
             } else {
-                uploadFile(request, fileToUpload);
+                uploadFile(exchange, fileToUpload);
+            }
+            request.flush();
+
+            // Le serveur confirme une fois toutes les parties acquittées par les slaves
+            String status = response.readUTF();
+            if (status.startsWith("ERREUR")) {
+                System.out.println(status);
+            } else {
+                System.out.println("Upload terminé : " + fileToUpload.getName());
             }
 
         } catch (IOException e) {
@@ -38,8 +67,9 @@ public class FileClient {
         }
     }
 
-    private void uploadDirectory(DataOutputStream request, File directory) throws IOException {
-        request.writeUTF(directory.getName());
+    private void uploadDirectory(Exchange exchange, File directory) throws IOException {
+        DataOutputStream request = exchange.request;
+        exchange.writeText(directory.getName());
         File[] files = directory.listFiles();
         request.writeInt(files != null ? files.length : 0);
 
@@ -47,16 +77,17 @@ public class FileClient {
             for (File file : files) {
                 request.writeBoolean(file.isFile());
                 if (file.isFile()) {
-                    uploadFile(request, file);
+                    uploadFile(exchange, file);
                 } else {
-                    uploadDirectory(request, file);
+                    uploadDirectory(exchange, file);
                 }
             }
         }
     }
 
-    private void uploadFile(DataOutputStream request, File file) throws IOException {
-        request.writeUTF(file.getName());
+    private void uploadFile(Exchange exchange, File file) throws IOException {
+        DataOutputStream request = exchange.request;
+        exchange.writeText(file.getName());
         request.writeLong(file.length());
 
         try (FileInputStream fis = new FileInputStream(file)) { // mamaky anle donnees
@@ -68,8 +99,322 @@ public class FileClient {
         }
     }
 
+    /**
+     * Upload d'un fichier par session, sur une ou plusieurs connexions simultanées. Le serveur ouvre
+     * une session (UPLOAD_BEGIN) et donne la taille des chunks ; chaque connexion envoie ensuite un chunk
+     * à la fois (UPLOAD_RANGE) et le fichier n'est validé (UPLOAD_COMMIT) qu'une fois tous reçus.
+     * L'identifiant de session est gardé dans .dnt_sessions/ : si l'upload est interrompu, la commande
+     * relancée demande au serveur les chunks déjà reçus (UPLOAD_STATUS) et n'envoie que les autres.
+     */
+    public void uploadFileChunked(File fileToUpload, int streams) {
+        ExecutorService workers = Executors.newFixedThreadPool(streams);
+        try {
+            String sessionId = null;
+            long chunkSize = 0;
+            BitSet received = new BitSet();
+
+            Properties saved = loadUploadSession(fileToUpload);
+            if (saved != null) {
+                BitSet status = queryReceivedChunks(saved.getProperty("session"));
+                if (status != null) {
+                    sessionId = saved.getProperty("session");
+                    chunkSize = Long.parseLong(saved.getProperty("chunkSize"));
+                    received = status;
+                    System.out.println("Reprise de l'upload : " + received.cardinality() + " chunks déjà reçus");
+                }
+            }
+
+            if (sessionId == null) {
+                try (Exchange exchange = open("UPLOAD_BEGIN")) {
+                    DataOutputStream request = exchange.request;
+                    DataInputStream response = exchange.response;
+
+                    exchange.writeText(fileToUpload.getName());
+                    request.writeLong(fileToUpload.length());
+                    request.flush();
+                    String status = response.readUTF();
+                    if (!status.equals("OK")) {
+                        System.out.println(status);
+                        return;
+                    }
+                    sessionId = response.readUTF();
+                    chunkSize = response.readLong();
+                }
+                saveUploadSession(fileToUpload, sessionId, chunkSize);
+            }
+
+            String session = sessionId;
+            long size = fileToUpload.length();
+            long chunkLength = chunkSize;
+            BitSet skipped = received;
+            int chunkCount = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+            AtomicInteger nextChunk = new AtomicInteger();
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < Math.min(streams, chunkCount); i++) {
+                results.add(workers.submit(() -> {
+                    int chunk;
+                    while ((chunk = nextChunk.getAndIncrement()) < chunkCount) {
+                        if (skipped.get(chunk)) {
+                            continue;
+                        }
+                        long offset = chunk * chunkLength;
+                        String status = uploadRange(fileToUpload, session, offset, Math.min(chunkLength, size - offset));
+                        if (!status.equals("OK")) {
+                            return status;
+                        }
+                    }
+                    return "OK";
+                }));
+            }
+            for (Future<String> result : results) {
+                String status;
+                try {
+                    status = result.get();
+                } catch (ExecutionException e) {
+                    status = "ERREUR: " + e.getCause().getMessage();
+                }
+                if (!status.equals("OK")) {
+                    System.out.println(status);
+                    System.out.println("Upload interrompu : relancez la commande pour reprendre");
+                    return;
+                }
+            }
+
+            try (Exchange exchange = open("UPLOAD_COMMIT")) {
+                DataOutputStream request = exchange.request;
+                DataInputStream response = exchange.response;
+
+                request.writeUTF(sessionId);
+                request.flush();
+                String status = response.readUTF();
+                if (status.startsWith("ERREUR")) {
+                    System.out.println(status);
+                } else {
+                    sessionFile(fileToUpload).delete();
+                    System.out.println("Upload terminé : " + fileToUpload.getName()
+                            + (streams > 1 ? " (" + streams + " flux)" : ""));
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Upload interrompu : relancez la commande pour reprendre");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /** Chunks déjà reçus par le serveur pour une session, ou null si la session n'existe plus. */
+    private BitSet queryReceivedChunks(String sessionId) throws IOException {
+        try (Exchange exchange = open("UPLOAD_STATUS")) {
+            DataOutputStream request = exchange.request;
+            DataInputStream response = exchange.response;
+
+            request.writeUTF(sessionId);
+            request.flush();
+            if (!response.readUTF().equals("OK")) {
+                return null;
+            }
+            BitSet received = new BitSet(response.readInt());
+            int count = response.readInt();
+            for (int i = 0; i < count; i++) {
+                received.set(response.readInt());
+            }
+            return received;
+        }
+    }
+
+    /** Fichier local de la session d'upload d'un fichier, propre à ce serveur. */
+    private File sessionFile(File file) {
+        String key = serverAddress + ":" + serverPort + ":" + file.getAbsolutePath();
+        return new File(SESSION_DIR, Integer.toHexString(key.hashCode()) + ".session");
+    }
+
+    /** Session enregistrée pour ce fichier, si le fichier n'a pas changé depuis. */
+    private Properties loadUploadSession(File file) {
+        File sessionFile = sessionFile(file);
+        if (!sessionFile.exists()) {
+            return null;
+        }
+        Properties session = new Properties();
+        try (InputStream input = new FileInputStream(sessionFile)) {
+            session.load(input);
+        } catch (IOException e) {
+            return null;
+        }
+        if (!file.getAbsolutePath().equals(session.getProperty("path"))
+                || !String.valueOf(file.length()).equals(session.getProperty("size"))
+                || !String.valueOf(file.lastModified()).equals(session.getProperty("modified"))) {
+            sessionFile.delete(); // fichier modifié : la session ne correspond plus
+            return null;
+        }
+        return session;
+    }
+
+    private void saveUploadSession(File file, String sessionId, long chunkSize) throws IOException {
+        Properties session = new Properties();
+        session.setProperty("path", file.getAbsolutePath());
+        session.setProperty("size", String.valueOf(file.length()));
+        session.setProperty("modified", String.valueOf(file.lastModified()));
+        session.setProperty("session", sessionId);
+        session.setProperty("chunkSize", String.valueOf(chunkSize));
+
+        SESSION_DIR.mkdirs();
+        try (OutputStream output = new FileOutputStream(sessionFile(file))) {
+            session.store(output, "Session d'upload DNT");
+        }
+    }
+
+    /** Envoie une plage du fichier sur sa propre connexion et renvoie la réponse du serveur. */
+    private String uploadRange(File file, String sessionId, long offset, long length) throws IOException {
+        try (Exchange exchange = openTransfer("UPLOAD_RANGE");
+                RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            DataOutputStream request = exchange.request;
+            DataInputStream response = exchange.response;
+
+            request.writeUTF(sessionId);
+            request.writeLong(offset);
+            request.writeLong(length);
+
+            raf.seek(offset);
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = length;
+            while (remaining > 0) {
+                int read = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new EOFException("Fichier modifié pendant l'upload : " + file);
+                }
+                request.write(buffer, 0, read);
+                remaining -= read;
+            }
+            request.flush();
+            return response.readUTF();
+        }
+    }
+
+    /**
+     * Commande en cours d'échange avec le serveur principal : un flux v2 (de la connexion partagée, ou
+     * d'une connexion propre à un transfert), sinon une connexion dédiée (protocole v1). La requête est tamponnée et doit être vidée
+     * avant la lecture de la réponse. Les noms et chemins passent par writeText et readText : writeUTF
+     * en v1, [longueur int][UTF-8] en v2, sans limite de 64 Ko.
+     */
+    private static final class Exchange implements Closeable {
+        final DataOutputStream request;
+        final DataInputStream response;
+        private final Closeable channel;
+        private final boolean multiplexed;
+
+        Exchange(DataOutputStream request, DataInputStream response, Closeable channel, boolean multiplexed) {
+            this.request = request;
+            this.response = response;
+            this.channel = channel;
+            this.multiplexed = multiplexed;
+        }
+
+        void writeText(String text) throws IOException {
+            if (!multiplexed) {
+                request.writeUTF(text);
+                return;
+            }
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            request.writeInt(bytes.length);
+            request.write(bytes);
+        }
+
+        String readText() throws IOException {
+            if (!multiplexed) {
+                return response.readUTF();
+            }
+            int length = response.readInt();
+            if (length < 0 || length > MAX_TEXT) {
+                throw new IOException("Champ texte invalide (" + length + " octets)");
+            }
+            byte[] bytes = new byte[length];
+            response.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Ouvre l'échange d'une commande sur la connexion v2 partagée ; perdue, elle est rétablie une fois
+     * avant de passer en v1.
+     */
+    private Exchange open(String command) throws IOException {
+        MultiplexedConnection connection;
+        synchronized (this) {
+            if (multiplexed != null && multiplexed.isClosed()) {
+                try {
+                    multiplexed = MultiplexedConnection.open(serverAddress, serverPort);
+                } catch (IOException e) {
+                    multiplexed = null;
+                }
+            }
+            connection = multiplexed;
+        }
+        if (connection != null) {
+            MultiplexedConnection.Stream stream = connection.openStream(command);
+            return new Exchange(stream.request, stream.response, stream, true);
+        }
+        return openV1(command);
+    }
+
+    /**
+     * Ouvre l'échange d'un transfert de données (upload, téléchargement, plage de put -j) sur sa propre
+     * connexion : le débit d'une connexion TCP est borné par sa fenêtre à chaque aller-retour, et les
+     * plages parallèles doivent en avoir chacune une. En v2, une connexion multiplexée dédiée au transfert.
+     */
+    private Exchange openTransfer(String command) throws IOException {
+        synchronized (this) {
+            if (multiplexed == null) {
+                return openV1(command);
+            }
+        }
+        MultiplexedConnection connection = MultiplexedConnection.open(serverAddress, serverPort);
+        if (connection == null) {
+            return openV1(command);
+        }
+        try {
+            MultiplexedConnection.Stream stream = connection.openStream(command);
+            return new Exchange(stream.request, stream.response, () -> {
+                stream.close();
+                connection.close();
+            }, true);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /** Connexion dédiée à une commande (protocole v1). */
+    private Exchange openV1(String command) throws IOException {
+        Socket socket = new Socket(serverAddress, serverPort);
+        DataOutputStream request = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        DataInputStream response = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        request.writeUTF(command);
+        return new Exchange(request, response, socket, false);
+    }
+
+    /**
+     * Connexion au serveur : protocole v2 (une connexion multiplexée pour les commandes, une par transfert
+     * de données) si le serveur le connaît, sinon protocole v1 (une connexion par commande).
+     */
     public boolean connectToServer() throws IOException {
         try {
+            MultiplexedConnection connection = MultiplexedConnection.open(serverAddress, serverPort);
+            if (connection != null) {
+                synchronized (this) {
+                    multiplexed = connection;
+                }
+                System.out.println("Bien connecter au serveur (protocole v2)");
+                return true;
+            }
+
             Socket socket = new Socket(serverAddress, serverPort);
             DataOutputStream request = new DataOutputStream(socket.getOutputStream());
             DataInputStream reponse = new DataInputStream(socket.getInputStream());
@@ -88,118 +433,514 @@ public class FileClient {
     }
 
     public void downloadFromServer(String fileName, File downloadDirectory) {
-        try (Socket socket = new Socket(serverAddress, serverPort);
-                DataOutputStream request = new DataOutputStream(socket.getOutputStream());
-                DataInputStream response = new DataInputStream(socket.getInputStream())) {
+        downloadFromServer(fileName, downloadDirectory, TREE_WRITERS);
+    }
 
+    /** Téléchargement par le serveur principal ; writers : threads d'écriture pour un dossier. */
+    public void downloadFromServer(String fileName, File downloadDirectory, int writers) {
+        try {
             // Vérifier si c'est un dossier ou un fichier sur le serveur
-            request.writeUTF("LIST");
-            int count = response.readInt();
-            boolean isDirectory = false;
+            String kind;
+            try (Exchange exchange = open("STAT")) {
+                exchange.writeText(fileName);
+                exchange.request.flush();
+                kind = exchange.response.readUTF();
+                if (kind.equals("FILE")) {
+                    exchange.response.readLong(); // taille
+                }
+            }
+            if (kind.equals("ABSENT")) {
+                System.out.println("Introuvable sur le serveur : " + fileName);
+                return;
+            }
+            if (kind.equals("FILE")) {
+                downloadResumable(fileName, downloadDirectory);
+                return;
+            }
+            downloadTree(fileName, downloadDirectory, writers);
 
-            // Parcourir la liste des fichiers pour vérifier si c'est un dossier
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Emplacement d'un chunk donné par LOCATE. */
+    private static class ChunkLocation {
+        final String address;
+        final int port;
+        final int index;
+        final long offset;
+        final long length;
+        final int crc; // CRC32C enregistré au catalogue du serveur
+
+        ChunkLocation(String address, int port, int index, long offset, long length, int crc) {
+            this.address = address;
+            this.port = port;
+            this.index = index;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+
+    /**
+     * Téléchargement direct depuis les slaves : le serveur ne donne que la carte de placement
+     * (LOCATE), puis les chunks sont lus en parallèle sur leurs slaves et écrits à leur position dans
+     * « nom.partial », renommé une fois complet. Renvoie false si la lecture directe n'a pas abouti
+     * (slave en erreur, injoignable ou muet au-delà du délai) ; le fichier partiel est alors supprimé.
+     */
+    public boolean downloadDirect(String fileName, File downloadDirectory, int streams) {
+        String name;
+        String storedName; // nom des chunks de la version lue sur les slaves
+        long size;
+        List<ChunkLocation> chunks = new ArrayList<>();
+        try (Exchange exchange = open("LOCATE")) {
+            DataInputStream response = exchange.response;
+
+            exchange.writeText(fileName);
+            exchange.request.flush();
+            String status = response.readUTF();
+            if (!status.equals("OK")) {
+                System.out.println(status);
+                return false;
+            }
+            name = exchange.readText();
+            storedName = exchange.readText();
+            size = response.readLong();
+            int count = response.readInt();
             for (int i = 0; i < count; i++) {
-                String name = response.readUTF();
-                boolean isFile = response.readBoolean();
-                if (name.equals(fileName)) {
-                    isDirectory = !isFile;
-                    break;
+                chunks.add(new ChunkLocation(response.readUTF(), response.readInt(), response.readInt(),
+                        response.readLong(), response.readLong(), response.readInt()));
+            }
+        } catch (IOException e) {
+            System.out.println("Carte de placement indisponible : " + e.getMessage());
+            return false;
+        }
+
+        File outputFile = new File(downloadDirectory, new File(name).getName());
+        File partialFile = new File(outputFile.getPath() + ".partial");
+        ExecutorService workers = Executors.newFixedThreadPool(streams);
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(partialFile, "rw")) {
+                raf.setLength(size);
+                FileChannel output = raf.getChannel();
+                List<Future<Void>> results = new ArrayList<>();
+                for (ChunkLocation chunk : chunks) {
+                    results.add(workers.submit(() -> {
+                        fetchChunk(storedName, chunk, output);
+                        return null;
+                    }));
+                }
+                for (Future<Void> result : results) {
+                    result.get();
                 }
             }
+            Files.move(partialFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | ExecutionException e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            System.out.println("Lecture directe interrompue : " + cause.getMessage());
+            partialFile.delete();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            partialFile.delete();
+            return false;
+        } finally {
+            workers.shutdownNow();
+        }
+        System.out.println("Fichier reçu : " + downloadDirectory + " (lecture directe, " + streams + " flux)");
+        return true;
+    }
 
-            // Nouvelle connexion pour le téléchargement
-            try (Socket downloadSocket = new Socket(serverAddress, serverPort);
-                    DataOutputStream downloadRequest = new DataOutputStream(downloadSocket.getOutputStream()); // madenfa
-                    DataInputStream downloadResponse = new DataInputStream(downloadSocket.getInputStream())) { // mamaky
+    /**
+     * Lit un chunk entier sur son slave (DOWNLOAD_PART_FRAMED), contrôle son CRC32C contre celui du
+     * catalogue reçu avec LOCATE et l'écrit à sa position dans le fichier. Un chunk stocké compressé arrive
+     * tel quel, en trames [taille d'origine][taille stockée][octets] (Deflate, ou brutes si les deux tailles
+     * sont égales), et se décompresse ici ; le CRC32C porte toujours sur les octets d'origine.
+     */
+    private void fetchChunk(String fileName, ChunkLocation chunk, FileChannel output) throws IOException {
+        try (Socket socket = connectToSlave(chunk);
+                DataOutputStream request = new DataOutputStream(socket.getOutputStream());
+                DataInputStream response = new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
 
-                if (isDirectory) {
-                    downloadRequest.writeUTF("DOWNLOAD_DIR");
-                    downloadRequest.writeUTF(fileName);
-                    downloadDirectory(downloadResponse, downloadDirectory);
-                } else {
-                    downloadRequest.writeUTF("DOWNLOAD_FILE");
-                    downloadRequest.writeUTF(fileName);
-                    downloadFile(downloadResponse, downloadDirectory);
+            request.writeUTF("DOWNLOAD_PART_FRAMED");
+            request.writeUTF(fileName);
+            request.writeInt(chunk.index);
+            if (!"OK".equals(response.readUTF())) {
+                throw new IOException("Chunk " + chunk.index + " absent du slave " + chunk.address + ":" + chunk.port);
+            }
+            long partSize = response.readLong();
+            if (partSize != chunk.length) {
+                throw new IOException("Chunk " + chunk.index + " : taille " + partSize + " au lieu de " + chunk.length);
+            }
+            if (response.readInt() != chunk.crc) {
+                throw new IOException("Chunk " + chunk.index + " : CRC32C du slave différent de celui du catalogue");
+            }
+            boolean framed = response.readBoolean();
+
+            CRC32C crc = new CRC32C();
+            if (framed) {
+                response.readLong(); // taille stockée : les trames se délimitent d'elles-mêmes
+                try (ChunkFrameInput frames = new ChunkFrameInput(response, partSize)) {
+                    copyChunk(frames, chunk, output, crc);
                 }
+            } else {
+                copyChunk(response, chunk, output, crc);
+            }
+            if ((int) crc.getValue() != chunk.crc) {
+                throw new IOException("Chunk " + chunk.index + " corrompu (CRC32C invalide)");
             }
+        }
+    }
 
+    /** Connexion directe au slave d'un chunk : un slave injoignable ou muet fait échouer la lecture. */
+    private static Socket connectToSlave(ChunkLocation chunk) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(chunk.address, chunk.port), SLAVE_CONNECT_TIMEOUT);
+            socket.setSoTimeout(SLAVE_READ_TIMEOUT);
+            return socket;
         } catch (IOException e) {
-            e.printStackTrace();
+            socket.close();
+            throw e;
         }
     }
 
-    private void downloadDirectory(DataInputStream response, File parentDir) throws IOException {
-        String status = response.readUTF();
-        if (status.startsWith("ERREUR")) {
-            throw new IOException(status);
+    /** Écrit à sa position dans le fichier un chunk lu sur data (octets d'origine), en calculant son CRC32C. */
+    private static void copyChunk(InputStream data, ChunkLocation chunk, FileChannel output, CRC32C crc)
+            throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long written = 0;
+        while (written < chunk.length) {
+            int read = data.read(buffer, 0, (int) Math.min(buffer.length, chunk.length - written));
+            if (read == -1) {
+                throw new EOFException("Chunk " + chunk.index + " tronqué");
+            }
+            crc.update(buffer, 0, read);
+            writeAt(output, buffer, read, chunk.offset + written);
+            written += read;
         }
+    }
 
-        String dirName = response.readUTF();
-        File newDir = new File(parentDir, dirName);
-        newDir.mkdirs();
+    private static void writeAt(FileChannel output, byte[] data, int length, long position) throws IOException {
+        ByteBuffer view = ByteBuffer.wrap(data, 0, length);
+        while (view.hasRemaining()) {
+            output.write(view, position + view.position());
+        }
+    }
 
-        int fileCount = response.readInt();
-        for (int i = 0; i < fileCount; i++) {
-            boolean isFile = response.readBoolean();
-            if (isFile) {
-                downloadFile(response, newDir);
-            } else {
-                downloadDirectory(response, newDir);
+    /**
+     * Téléchargement d'un dossier par DOWNLOAD_TREE : le manifeste crée l'arborescence, puis le contenu
+     * des fichiers arrive bout à bout sur la même connexion. Ce thread ne fait que lire le réseau par blocs ;
+     * la création, l'écriture et le renommage des fichiers sont confiés à writers threads (les blocs d'un
+     * même fichier dans l'ordre), dans la limite de TREE_PENDING_BYTES octets en attente.
+     */
+    public void downloadTree(String dirName, File downloadDirectory, int writers) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(writers);
+        Semaphore pending = new Semaphore(TREE_PENDING_BYTES);
+        List<CompletableFuture<Void>> files = new ArrayList<>();
+        File root;
+        try (Exchange exchange = openTransfer("DOWNLOAD_TREE")) {
+            DataInputStream response = exchange.response;
+
+            exchange.writeText(dirName);
+            exchange.request.flush();
+            String status = response.readUTF();
+            if (!status.equals("OK")) {
+                throw new IOException(status);
             }
+
+            root = new File(downloadDirectory, exchange.readText());
+            root.mkdirs();
+            int dirCount = response.readInt();
+            for (int i = 0; i < dirCount; i++) {
+                new File(root, exchange.readText()).mkdirs();
+            }
+            int fileCount = response.readInt();
+            String[] paths = new String[fileCount];
+            long[] sizes = new long[fileCount];
+            for (int i = 0; i < fileCount; i++) {
+                paths[i] = exchange.readText();
+                sizes[i] = response.readLong();
+            }
+
+            for (int i = 0; i < fileCount; i++) {
+                files.add(receiveTreeFile(response, new File(root, paths[i]), sizes[i], pool, pending));
+            }
+            for (CompletableFuture<Void> file : files) {
+                file.join();
+            }
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            pool.shutdown();
         }
-        System.out.println("Fichier reçu : " + parentDir);
+        System.out.println("Dossier reçu : " + root + " (" + files.size() + " fichiers)");
     }
 
-    private void downloadFile(DataInputStream response, File downloadDir) throws IOException {
-        String status = response.readUTF();
-        if (status.startsWith("ERREUR")) {
-            throw new IOException(status);
+    /** Lit un fichier du flux par blocs et enchaîne son écriture sur le pool ; renvoie la fin de l'écriture. */
+    private CompletableFuture<Void> receiveTreeFile(DataInputStream response, File target, long size,
+            ExecutorService pool, Semaphore pending) throws IOException {
+        TreeFile file = new TreeFile(target);
+        CompletableFuture<Void> chain = CompletableFuture.runAsync(file::open, pool);
+        try {
+            long remaining = size;
+            while (remaining > 0) {
+                int length = (int) Math.min(TREE_BLOCK_SIZE, remaining);
+                pending.acquire(length);
+                byte[] block = new byte[length];
+                try {
+                    response.readFully(block);
+                } catch (IOException e) {
+                    pending.release(length);
+                    throw e;
+                }
+                remaining -= length;
+
+                CompletableFuture<Void> step = chain.thenRunAsync(() -> file.write(block), pool);
+                step.whenComplete((ignored, error) -> pending.release(length));
+                chain = step;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            chain.whenComplete((ignored, error) -> file.abort());
+            throw new InterruptedIOException("Téléchargement interrompu : " + target.getName());
+        } catch (IOException e) {
+            chain.whenComplete((ignored, error) -> file.abort());
+            throw e;
         }
+        return chain.thenRunAsync(file::finish, pool).whenComplete((ignored, error) -> {
+            if (error != null) {
+                file.abort();
+            }
+        });
+    }
 
-        String name = response.readUTF();
-        long size = response.readLong();
+    /** Fichier d'un dossier en cours d'écriture, sous un nom temporaire jusqu'à sa fin. */
+    private static final class TreeFile {
+        private final File target;
+        private final File partialFile;
+        private FileOutputStream output;
 
-        File outputFile = new File(downloadDir, name);
+        TreeFile(File target) {
+            this.target = target;
+            this.partialFile = new File(target.getPath() + ".partial");
+        }
 
-        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-            byte[] buffer = new byte[4096];
-            long remaining = size;
-            int read;
+        void open() {
+            try {
+                output = new FileOutputStream(partialFile);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
 
-            while (remaining > 0 && (read = response.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
-                fos.write(buffer, 0, read);
-                remaining -= read;
+        void write(byte[] block) {
+            try {
+                output.write(block);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void finish() {
+            try {
+                output.close();
+                Files.move(partialFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void abort() {
+            try {
+                if (output != null) {
+                    output.close();
+                }
+            } catch (IOException e) {
+                // fichier partiel supprimé de toute façon
             }
+            partialFile.delete();
         }
-        System.out.println("Fichier reçu : " + downloadDir);
+    }
 
+    /**
+     * Téléchargement d'un fichier par DOWNLOAD_RANGE dans « nom.version.partial », renommé une fois
+     * complet. Un fichier partiel laissé par un transfert interrompu est repris à sa longueur, sauf si
+     * le fichier a changé sur le serveur depuis (réponse MODIFIE) : il est alors repris de zéro.
+     */
+    private void downloadResumable(String fileName, File downloadDir) throws IOException {
+        String localName = new File(fileName).getName(); // chemin logique (dossier envoyé) : nom de base
+        File partialFile = findPartial(downloadDir, localName);
+        while (true) {
+            long offset = partialFile != null ? partialFile.length() : 0;
+            long version = partialFile != null ? partialVersion(partialFile, localName) : 0;
+
+            try (Exchange exchange = openTransfer("DOWNLOAD_RANGE")) {
+                DataOutputStream request = exchange.request;
+                DataInputStream response = exchange.response;
+
+                exchange.writeText(fileName);
+                request.writeLong(offset);
+                request.writeLong(Long.MAX_VALUE);
+                request.writeLong(version);
+                request.flush();
+
+                String status = response.readUTF();
+                if (!status.equals("OK")) {
+                    if (partialFile == null) {
+                        throw new IOException(status);
+                    }
+                    // Fichier modifié ou partiel invalide : on repart de zéro
+                    partialFile.delete();
+                    partialFile = null;
+                    continue;
+                }
+                long size = response.readLong();
+                long currentVersion = response.readLong();
+                long chunkSize = response.readLong();
+                long length = response.readLong();
+
+                if (partialFile == null) {
+                    partialFile = new File(downloadDir, localName + "." + currentVersion + ".partial");
+                } else {
+                    System.out.println("Reprise de " + fileName + " à l'octet " + offset + "/" + size);
+                }
+
+                try (RandomAccessFile raf = new RandomAccessFile(partialFile, "rw")) {
+                    raf.seek(offset);
+                    byte[] buffer = new byte[64 * 1024];
+                    long remaining = length;
+                    try {
+                        while (remaining > 0) {
+                            int read = response.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                            if (read == -1) {
+                                throw new EOFException("Transfert interrompu : " + fileName + " (reprise possible)");
+                            }
+                            raf.write(buffer, 0, read);
+                            remaining -= read;
+                        }
+                    } catch (IOException e) {
+                        // Le serveur coupe le transfert d'un chunk qui échoue à son contrôle : le début
+                        // de ce chunk est retiré pour être relu à la reprise
+                        raf.setLength(raf.length() / chunkSize * chunkSize);
+                        throw e;
+                    }
+                }
+                Files.move(partialFile.toPath(), new File(downloadDir, localName).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+                System.out.println("Fichier reçu : " + downloadDir);
+                return;
+            }
+        }
     }
 
-    public void deleteFromServer(String fileName) {
-        try (Socket socket = new Socket(serverAddress, serverPort);
-                DataOutputStream request = new DataOutputStream(socket.getOutputStream())) {
+    /** Fichier partiel « nom.version.partial » d'un téléchargement interrompu, ou null. */
+    private static File findPartial(File downloadDir, String fileName) {
+        File[] files = downloadDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && partialVersion(file, fileName) > 0) {
+                    return file;
+                }
+            }
+        }
+        return null;
+    }
 
-            request.writeUTF("DELETE");
-            request.writeUTF(fileName);
+    private static long partialVersion(File file, String fileName) {
+        String name = file.getName();
+        String prefix = fileName + ".";
+        String suffix = ".partial";
+        if (!name.startsWith(prefix) || !name.endsWith(suffix) || name.length() <= prefix.length() + suffix.length()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
 
-            // System.out.println("Suppression effectuée : " + fileName);
+    /** Suppression d'un fichier ; renvoie la réponse du serveur : OK, ABSENT ou ERREUR. */
+    public String deleteFromServer(String fileName) throws IOException {
+        try (Exchange exchange = open("DELETE")) {
+            exchange.writeText(fileName);
+            exchange.request.flush();
+            return exchange.response.readUTF();
+        }
+    }
 
+    /**
+     * Suppression groupée en une seule requête : le serveur supprime les chunks par un seul message par
+     * slave. Renvoie le résultat de chaque nom (OK, ABSENT ou ERREUR), dans l'ordre de la demande.
+     */
+    public Map<String, String> deleteFiles(List<String> names) throws IOException {
+        try (Exchange exchange = open("DELETE_BATCH")) {
+            exchange.request.writeBoolean(false);
+            exchange.request.writeInt(names.size());
+            for (String name : names) {
+                exchange.writeText(name);
+            }
+            exchange.request.flush();
+            return readDeleteResults(exchange);
+        }
+    }
+
+    /** Suppression de tous les fichiers correspondant à un motif (préfixe ou glob * ?). */
+    public Map<String, String> deleteMatching(String pattern) throws IOException {
+        try (Exchange exchange = open("DELETE_BATCH")) {
+            exchange.request.writeBoolean(true);
+            exchange.writeText(pattern);
+            exchange.request.flush();
+            return readDeleteResults(exchange);
+        }
+    }
+
+    private static Map<String, String> readDeleteResults(Exchange exchange) throws IOException {
+        String status = exchange.response.readUTF();
+        if (!status.equals("OK")) {
+            throw new IOException(status);
+        }
+        int count = exchange.response.readInt();
+        Map<String, String> results = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = exchange.readText();
+            results.put(name, exchange.response.readUTF());
+        }
+        return results;
+    }
+
+    public List<String> getServerStats() {
+        List<String> stats = new ArrayList<>();
+        try (Exchange exchange = open("STATS")) {
+            DataInputStream response = exchange.response;
+
+            exchange.request.flush();
+            int count = response.readInt();
+
+            for (int i = 0; i < count; i++) {
+                String name = response.readUTF();
+                long value = response.readLong();
+                stats.add(name + " = " + value);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
+        return stats;
     }
 
     public List<String> listFiles() {
         List<String> list = new ArrayList<>();
-        try (Socket socket = new Socket(serverAddress, serverPort);
-                DataOutputStream request = new DataOutputStream(socket.getOutputStream());
-                DataInputStream response = new DataInputStream(socket.getInputStream())) {
+        try (Exchange exchange = open("LIST")) {
+            DataInputStream response = exchange.response;
 
-            request.writeUTF("LIST");
+            exchange.request.flush();
             int count = response.readInt();
 
             for (int i = 0; i < count; i++) {
-                String fileName = response.readUTF();
+                String fileName = exchange.readText();
                 boolean isFile = response.readBoolean();
                 list.add((isFile ? "[F] " : "[D] ") + fileName);
             }
@@ -209,4 +950,27 @@ public class FileClient {
         return list;
     }
 
+    /**
+     * Lit une page de la liste du serveur (motif préfixe ou glob) et ajoute ses éléments à page.
+     * Renvoie le jeton de la page suivante, vide quand la liste est épuisée.
+     */
+    public String listPage(String pattern, String token, int limit, List<String> page) throws IOException {
+        try (Exchange exchange = open("LIST_PAGE")) {
+            DataInputStream response = exchange.response;
+
+            exchange.writeText(pattern);
+            exchange.writeText(token);
+            exchange.request.writeInt(limit);
+            exchange.request.flush();
+            int count = response.readInt();
+
+            for (int i = 0; i < count; i++) {
+                String fileName = exchange.readText();
+                boolean isFile = response.readBoolean();
+                page.add((isFile ? "[F] " : "[D] ") + fileName);
+            }
+            return exchange.readText();
+        }
+    }
+
 }
\ No newline at end of file
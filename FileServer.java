@@ -4,6 +4,11 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32C;
 
 public class FileServer {
     // private static String SERVER_IP = "localhost";
@@ -12,6 +17,60 @@ public class FileServer {
     private static List<SlaveInfo> slaveList = new ArrayList<>();
     private static final int RECONNECT_DELAY = 5000; // 5 secondes entre les tentatives
     private static final int MAX_RECONNECT_ATTEMPTS = 3;
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024; // taille des blocs relayés vers les slaves
+    private static int UPLOAD_WINDOW_BLOCKS = 16; // blocs en attente par chunk en cours d'envoi
+    private static int DOWNLOAD_WINDOW_BLOCKS = 16; // blocs préchargés par chunk en cours de lecture
+    private static long CHUNK_SIZE = 8L * 1024 * 1024; // taille fixe des chunks répartis sur les slaves
+    private static int UPLOAD_INFLIGHT_CHUNKS = 8; // chunks en cours d'envoi simultanément par fichier
+    private static int DOWNLOAD_PREFETCH_CHUNKS = 8; // chunks lus en avance par téléchargement
+    private static int DOWNLOAD_TREE_PREFETCH = 32; // parties de fichiers lues en avance par téléchargement de dossier
+    private static int SLAVE_IO_THREADS = 32;
+    private static ExecutorService slaveExecutor;
+    private static int SLAVE_POOL_MAX = 16; // connexions persistantes par slave
+    private static long SLAVE_POOL_IDLE_TIMEOUT = 60000; // fermeture des connexions inactives (ms)
+    private static int SLAVE_CONNECT_TIMEOUT = 2000; // délai d'établissement d'une connexion vers un slave (ms)
+    private static int SLAVE_READ_TIMEOUT = 30000; // délai maximal d'attente d'une réponse d'un slave (ms)
+    private static long SLAVE_POOL_ACQUIRE_TIMEOUT = 30000; // attente d'une connexion libre vers un slave (ms)
+    private static long HEARTBEAT_INTERVAL = 1000; // période des sondes de l'état des slaves (ms)
+    private static final long SLAVE_STATS_INTERVAL = 10000; // relevé de l'espace libre et du débit des slaves (ms)
+    private static Placement placement; // slave de chaque chunk, selon le débit et l'espace libre
+    private static RequestExecutor requestExecutor;
+    private static ServerEngine serverEngine;
+    private static ScheduledExecutorService maintenance;
+    private static Catalog catalog;
+    private static boolean importCatalog; // premier démarrage : reconstruire le catalogue depuis les slaves
+    private static final int MAX_LIST_PAGE = 10000; // noms par page de LIST_PAGE
+    private static long UPLOAD_SESSION_TIMEOUT = 86400000; // abandon d'une session d'upload inactive (ms)
+    private static UploadSessions uploadSessions;
+    private static final AtomicLong checksumErrors = new AtomicLong(); // chunks lus avec un CRC32C faux
+    private static boolean COMPRESSION = true; // chunks compressibles envoyés en trames compressées
+    private static final AtomicLong compressedChunks = new AtomicLong(); // chunks envoyés compressés
+    private static long PACK_FILE_MAX = 256 * 1024; // fichiers d'un dossier groupés en dessous de cette taille
+    private static final long PACK_BATCH_LIMIT = 64L * 1024 * 1024; // un lot est tenu en mémoire
+    private static long PACK_BATCH_SIZE = 4L * 1024 * 1024; // octets par lot de fichiers groupés
+    private static ReadCache readCache; // chunks des fichiers les plus lus, null si désactivé
+    private static int MAX_STREAMS_PER_CONNECTION = 64; // flux simultanés d'une connexion v2
+
+    // Champs d'en-tête de chaque commande client, pour le moteur SELECTOR
+    private static final Map<String, String> COMMAND_HEADERS = Map.ofEntries(
+            Map.entry("CONNECT", ""),
+            Map.entry("CONNECT_V2", "I"),
+            Map.entry("UPLOAD", "Z"),
+            Map.entry("UPLOAD_BEGIN", "UL"),
+            Map.entry("UPLOAD_RANGE", "ULL"),
+            Map.entry("UPLOAD_STATUS", "U"),
+            Map.entry("UPLOAD_COMMIT", "U"),
+            Map.entry("LIST", ""),
+            Map.entry("LIST_PAGE", "UUI"),
+            Map.entry("DOWNLOAD_FILE", "U"),
+            Map.entry("DOWNLOAD_RANGE", "ULLL"),
+            Map.entry("LOCATE", "U"),
+            Map.entry("DOWNLOAD_DIR", "U"),
+            Map.entry("DOWNLOAD_TREE", "U"),
+            Map.entry("DELETE", "U"),
+            Map.entry("DELETE_BATCH", "Z"),
+            Map.entry("STAT", "U"),
+            Map.entry("STATS", ""));
 
     public static void main(String[] args) {
         FileServer server = new FileServer();
@@ -19,39 +78,76 @@ public class FileServer {
         server.startServer();
     }
 
-    public void handleClientRequest(Socket client) {
-        try {
-            System.out.println("Client connecté : " + client.getInetAddress());
-            DataInputStream requeteClient = new DataInputStream(client.getInputStream());
-            DataOutputStream requeteServeur = new DataOutputStream(client.getOutputStream());
-            String command = requeteClient.readUTF();
-
-            switch (command) {
-                case "CONNECT":
-                    handleConnect(requeteServeur, client);
-                    break;
-                case "UPLOAD":
-                    handleUpload(requeteClient);
-                    break;
-                case "LIST":
-                    handleList(requeteClient, requeteServeur);
-                    break;
-                case "DOWNLOAD_FILE":
-                    handleDownloadFile(requeteClient, requeteServeur);
-                    break;
-                case "DOWNLOAD_DIR":
-                    handleDownloadDir(requeteClient, requeteServeur);
-                    break;
-                case "DELETE":
-                    handleDelete(requeteClient);
-                    break;
-                default:
-                    requeteServeur.writeUTF("Commande inconnue");
-                    break;
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * Traite une commande client. Le protocole v1 ouvre une connexion par commande : la connexion est
+     * fermée après la réponse. Après CONNECT_V2, la connexion porte des flux multiplexés, chacun
+     * traité ici comme une connexion v1 (voir {@link MultiplexedSession}).
+     */
+    public boolean handleCommand(Connection client, String command) throws IOException {
+        System.out.println("Client connecté : " + client.peer);
+        DataInputStream requeteClient = client.in;
+        DataOutputStream requeteServeur = client.out;
+
+        switch (command) {
+            case "CONNECT":
+                handleConnect(requeteServeur, client);
+                break;
+            case "CONNECT_V2":
+                handleConnectV2(client);
+                break;
+            case "UPLOAD":
+                handleUpload(client);
+                break;
+            case "UPLOAD_BEGIN":
+                handleUploadBegin(client);
+                break;
+            case "UPLOAD_RANGE":
+                handleUploadRange(requeteClient, requeteServeur);
+                break;
+            case "UPLOAD_STATUS":
+                handleUploadStatus(requeteClient, requeteServeur);
+                break;
+            case "UPLOAD_COMMIT":
+                handleUploadCommit(requeteClient, requeteServeur);
+                break;
+            case "LIST":
+                handleList(client);
+                break;
+            case "LIST_PAGE":
+                handleListPage(client);
+                break;
+            case "DOWNLOAD_FILE":
+                handleDownloadFile(client);
+                break;
+            case "DOWNLOAD_RANGE":
+                handleDownloadRange(client);
+                break;
+            case "LOCATE":
+                handleLocate(client);
+                break;
+            case "DOWNLOAD_DIR":
+                handleDownloadDir(client);
+                break;
+            case "DOWNLOAD_TREE":
+                handleDownloadTree(client);
+                break;
+            case "DELETE":
+                handleDelete(client);
+                break;
+            case "DELETE_BATCH":
+                handleDeleteBatch(client);
+                break;
+            case "STAT":
+                handleStat(client);
+                break;
+            case "STATS":
+                handleStats(requeteServeur);
+                break;
+            default:
+                requeteServeur.writeUTF("Commande inconnue");
+                break;
         }
+        return false;
     }
 
     private void loadConfig() {
@@ -67,6 +163,40 @@ public class FileServer {
 
             PORT = Integer.parseInt(prop.getProperty("PORT", "1234"));
             SERVER_DIR = prop.getProperty("SERVER_DIR", "./reception/");
+            SLAVE_IO_THREADS = Integer.parseInt(prop.getProperty("SLAVE_IO_THREADS", "32"));
+            UPLOAD_WINDOW_BLOCKS = Integer.parseInt(prop.getProperty("UPLOAD_WINDOW_BLOCKS", "16"));
+            DOWNLOAD_WINDOW_BLOCKS = Integer.parseInt(prop.getProperty("DOWNLOAD_WINDOW_BLOCKS", "16"));
+            CHUNK_SIZE = Long.parseLong(prop.getProperty("CHUNK_SIZE", String.valueOf(8L * 1024 * 1024)));
+            UPLOAD_INFLIGHT_CHUNKS = Integer.parseInt(prop.getProperty("UPLOAD_INFLIGHT_CHUNKS", "8"));
+            DOWNLOAD_PREFETCH_CHUNKS = Integer.parseInt(prop.getProperty("DOWNLOAD_PREFETCH_CHUNKS", "8"));
+            DOWNLOAD_TREE_PREFETCH = Integer.parseInt(prop.getProperty("DOWNLOAD_TREE_PREFETCH", "32"));
+            MAX_STREAMS_PER_CONNECTION = Integer.parseInt(prop.getProperty("MAX_STREAMS_PER_CONNECTION", "64"));
+
+            // Pool borné pour les transferts vers les slaves ; au-delà, le thread client
+            // relaie lui-même (pas de file d'attente, donc pas d'interblocage possible)
+            slaveExecutor = new ThreadPoolExecutor(0, SLAVE_IO_THREADS, 60L, TimeUnit.SECONDS,
+                    new SynchronousQueue<>());
+            long readCacheSize = Long.parseLong(prop.getProperty("READ_CACHE_SIZE", String.valueOf(256L * 1024 * 1024)));
+            readCache = readCacheSize > 0 ? new ReadCache(readCacheSize, slaveExecutor) : null;
+            requestExecutor = RequestExecutor.fromConfig("client-handler", prop);
+            serverEngine = ServerEngine.fromConfig(prop, requestExecutor, COMMAND_HEADERS);
+            Connection.zeroCopy = Boolean.parseBoolean(prop.getProperty("ZERO_COPY", "true"));
+
+            SLAVE_POOL_MAX = Integer.parseInt(prop.getProperty("SLAVE_POOL_MAX", "16"));
+            SLAVE_POOL_IDLE_TIMEOUT = Long.parseLong(prop.getProperty("SLAVE_POOL_IDLE_TIMEOUT", "60000"));
+            SLAVE_POOL_ACQUIRE_TIMEOUT = Long.parseLong(prop.getProperty("SLAVE_POOL_ACQUIRE_TIMEOUT", "30000"));
+            SLAVE_CONNECT_TIMEOUT = Integer.parseInt(prop.getProperty("SLAVE_CONNECT_TIMEOUT", "2000"));
+            SLAVE_READ_TIMEOUT = Integer.parseInt(prop.getProperty("SLAVE_READ_TIMEOUT", "30000"));
+            HEARTBEAT_INTERVAL = Long.parseLong(prop.getProperty("HEARTBEAT_INTERVAL", "1000"));
+            long minFreeSpace = Long.parseLong(prop.getProperty("SLAVE_MIN_FREE_SPACE",
+                    String.valueOf(1024L * 1024 * 1024)));
+            UPLOAD_SESSION_TIMEOUT = Long.parseLong(prop.getProperty("UPLOAD_SESSION_TIMEOUT", "86400000"));
+            COMPRESSION = Boolean.parseBoolean(prop.getProperty("COMPRESSION", "true"));
+            PACK_BATCH_SIZE = Math.min(PACK_BATCH_LIMIT,
+                    Long.parseLong(prop.getProperty("PACK_BATCH_SIZE", String.valueOf(4L * 1024 * 1024))));
+            // Un fichier groupé est lu en mémoire avec son lot : jamais plus gros qu'un lot
+            PACK_FILE_MAX = Math.min(PACK_BATCH_SIZE,
+                    Long.parseLong(prop.getProperty("PACK_FILE_MAX", String.valueOf(256 * 1024))));
 
             // Créer le répertoire s'il n'existe pas
             new File(SERVER_DIR).mkdirs();
@@ -78,11 +208,41 @@ public class FileServer {
                 int slavePort = Integer.parseInt(prop.getProperty("SLAVE_" + i + "_PORT"));
                 slaveList.add(new SlaveInfo(slaveAddress, slavePort)); // mampiditra anle slive anaty list slive
             }
+            placement = new Placement(slaveList, minFreeSpace);
+
+            // Charger le catalogue des fichiers stockés
+            catalog = new Catalog(new File(prop.getProperty("CATALOG_DIR", SERVER_DIR)));
+            importCatalog = catalog.isNew();
+            catalog.load();
+            uploadSessions = new UploadSessions(new File(prop.getProperty("CATALOG_DIR", SERVER_DIR)));
+            uploadSessions.load();
+            catalog.reserveVersions(uploadSessions.maxVersion());
+            long snapshotInterval = Long.parseLong(prop.getProperty("CATALOG_SNAPSHOT_INTERVAL", "300000"));
+
+            // Tâches de fond : fermeture des connexions inactives, instantanés du catalogue,
+            // abandon des sessions d'upload inactives
+            maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "maintenance");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(1000, SLAVE_POOL_IDLE_TIMEOUT / 2);
+            maintenance.scheduleAtFixedRate(() -> slaveList.forEach(slave -> slave.pool.evictIdle()), period, period,
+                    TimeUnit.MILLISECONDS);
+            maintenance.scheduleAtFixedRate(this::snapshotCatalog, snapshotInterval, snapshotInterval,
+                    TimeUnit.MILLISECONDS);
+            long sessionCheck = Math.max(1000, UPLOAD_SESSION_TIMEOUT / 4);
+            maintenance.scheduleAtFixedRate(this::expireUploadSessions, sessionCheck, sessionCheck,
+                    TimeUnit.MILLISECONDS);
 
             System.out.println("Configuration chargée avec succès");
             System.out.println("Port du serveur: " + PORT);
             System.out.println("Répertoire de stockage: " + SERVER_DIR);
             System.out.println("Nombre de slaves configurés: " + slaveCount);
+            System.out.println("Fichiers au catalogue: " + catalog.size());
+            System.out.println("Sessions d'upload en cours: " + uploadSessions.size());
+            System.out.println("Modèle d'exécution: " + requestExecutor.model());
+            System.out.println("Moteur réseau: " + serverEngine.getClass().getSimpleName());
         } catch (IOException ex) {
             System.err.println("Erreur lors de la lecture du fichier de configuration.");
             ex.printStackTrace();
@@ -91,7 +251,7 @@ public class FileServer {
     }
 
     private void startServer() {
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
+        try {
             // System.out.println("FileServer démarré sur " + SERVER_IP + ":" + PORT);
 
             // Tester la connexion aux slaves avec plusieurs tentatives
@@ -100,7 +260,7 @@ public class FileServer {
                         "\nTentative de connexion aux slaves (" + attempt + "/" + MAX_RECONNECT_ATTEMPTS + ")");
                 testSlaveConnections();
 
-                int connectedCount = (int) slaveList.stream().filter(s -> s.isConnected).count();
+                int connectedCount = (int) slaveList.stream().filter(SlaveInfo::isConnected).count();
                 if (connectedCount == slaveList.size()) {
                     System.out.println("Tous les slaves sont connectés!");
                     break;
@@ -110,11 +270,13 @@ public class FileServer {
                 }
             }
 
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("\nNouveau client connecté : " + clientSocket.getInetAddress());
-                new Thread(() -> handleClientRequest(clientSocket)).start();
+            startHeartbeat();
+            if (importCatalog) {
+                importCatalogFromSlaves();
             }
+            migrateLegacyParts();
+
+            serverEngine.serve(PORT, this::handleCommand);
         } catch (IOException e) {
             System.err.println("Erreur fatale du serveur principal:");
             e.printStackTrace();
@@ -131,310 +293,1957 @@ public class FileServer {
 
         for (SlaveInfo slave : slaveList) {
             System.out.println("Tentative de connexion au slave " + slave.ip + ":" + slave.port);
-            try (Socket socket = new Socket(slave.ip, slave.port)) {
-                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-                DataInputStream in = new DataInputStream(socket.getInputStream());
-
-                out.writeUTF("CONNECT");
-                String response = in.readUTF();
-
-                if ("CONNECTE".equals(response)) {
-                    System.out.println("✓ Slave connecté avec succès: " + slave.ip + ":" + slave.port);
-                    slave.isConnected = true;
-                }
-            } catch (IOException e) {
+            checkSlave(slave);
+            if (slave.isConnected()) {
+                System.out.println("✓ Slave connecté avec succès: " + slave.ip + ":" + slave.port);
+            } else {
                 System.out.println("✗ Échec de connexion au slave: " + slave.ip + ":" + slave.port);
-                System.out.println("  Erreur: " + e.getMessage());
-                slave.isConnected = false;
             }
         }
 
-        int connectedSlaves = (int) slaveList.stream().filter(s -> s.isConnected).count();
+        int connectedSlaves = (int) slaveList.stream().filter(SlaveInfo::isConnected).count();
         System.out.println("Résultat final: " + connectedSlaves + "/" + slaveList.size() + " slaves connectés");
     }
 
-    private void handleConnect(DataOutputStream requeteServeur, Socket client) {
+    /**
+     * Sonde chaque slave à intervalle régulier, sur un thread par slave au plus (un slave sans réponse
+     * n'attarde pas la sonde des autres). Un slave est déclaré indisponible après quelques sondes
+     * manquées, disponible dès qu'il répond de nouveau.
+     */
+    private void startHeartbeat() {
+        if (slaveList.isEmpty()) {
+            return;
+        }
+        AtomicInteger threadCounter = new AtomicInteger();
+        ScheduledExecutorService heartbeat = Executors.newScheduledThreadPool(slaveList.size(), r -> {
+            Thread thread = new Thread(r, "sonde-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(100, HEARTBEAT_INTERVAL); // seule la sonde rend disponible un slave tombé
+        for (SlaveInfo slave : slaveList) {
+            heartbeat.scheduleWithFixedDelay(() -> checkSlave(slave), period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sonde un slave ; s'il vient de devenir disponible, ses capacités sont relues (il a pu redémarrer).
+     * Son espace libre et son débit d'écriture sont relevés toutes les {@link #SLAVE_STATS_INTERVAL} ms.
+     */
+    private void checkSlave(SlaveInfo slave) {
+        if (slave.pool.heartbeat()) {
+            slave.compression = queryCompression(slave);
+            slave.statsCheckedAt = 0;
+        }
+        if (slave.isConnected() && System.currentTimeMillis() - slave.statsCheckedAt >= SLAVE_STATS_INTERVAL) {
+            slave.statsCheckedAt = System.currentTimeMillis();
+            querySlaveStats(slave);
+        }
+    }
+
+    /** Relève l'espace libre et le débit d'écriture déclarés par un slave (STATS). */
+    private void querySlaveStats(SlaveInfo slave) {
+        try (SlavePool.Connection connection = slave.pool.acquire()) {
+            connection.out.writeUTF("STATS");
+            connection.out.flush();
+            Map<String, Long> stats = new HashMap<>();
+            int count = connection.in.readInt();
+            for (int i = 0; i < count; i++) {
+                stats.put(connection.in.readUTF(), connection.in.readLong());
+            }
+            connection.done();
+
+            long rate = stats.getOrDefault("ecriture.debit_ko_s", -1L);
+            slave.writeRate = rate < 0 ? -1 : rate * 1024;
+            slave.freeSpace = stats.getOrDefault("disque.libre", -1L);
+            slave.plannedBytes.set(0); // déjà compris dans l'espace libre relevé
+        } catch (IOException e) {
+            System.err.println("Relevé des statistiques du slave " + slave.ip + ":" + slave.port + " impossible: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Vrai si le slave accepte les chunks en trames compressées. Un slave antérieur répond
+     * "Commande inconnue" et ferme la connexion : il reçoit alors les chunks bruts.
+     */
+    private boolean queryCompression(SlaveInfo slave) {
+        try (SlavePool.Connection connection = slave.pool.acquire()) {
+            connection.out.writeUTF("CAPABILITIES");
+            connection.out.flush();
+            if (!"DEFLATE".equals(connection.in.readUTF())) {
+                return false;
+            }
+            connection.done();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void handleConnect(DataOutputStream requeteServeur, Connection client) {
         try {
             requeteServeur.writeUTF("CONNECTE");
-            System.out.println("Client connecté : " + client.getInetAddress());
+            System.out.println("Client connecté : " + client.peer);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private void handleUpload(DataInputStream requeteClient) {
+    /**
+     * Poignée de main du protocole v2 : version demandée par le client, réponse CONNECTE_V2 avec la version
+     * retenue et le nombre de flux simultanés permis, puis la connexion passe en trames jusqu'à sa fermeture.
+     * Les trames sont lues par un thread propre à la connexion, hors des limites du {@link RequestExecutor} :
+     * la requête CONNECT_V2 rend sa place tout de suite, et seuls les flux en occupent une.
+     */
+    private void handleConnectV2(Connection client) throws IOException {
+        int version = Math.min(client.in.readInt(), MultiplexedSession.VERSION);
+        if (version < MultiplexedSession.VERSION) {
+            client.out.writeUTF("ERREUR: Version de protocole non supportée");
+            return;
+        }
+        client.out.writeUTF("CONNECTE_V2");
+        client.out.writeInt(version);
+        client.out.writeInt(MAX_STREAMS_PER_CONNECTION);
+        client.out.flush();
+        System.out.println("Client connecté (protocole v" + version + ") : " + client.peer);
+        MultiplexedSession session = new MultiplexedSession(client, MAX_STREAMS_PER_CONNECTION, this::handleCommand,
+                requestExecutor);
+        client.detach();
+        requestExecutor.executeDetached(() -> {
+            try {
+                session.run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                client.closeDetached();
+            }
+        });
+    }
+
+    private void handleStats(DataOutputStream requeteServeur) throws IOException {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("requetes.actives", (long) requestExecutor.activeHandlers());
+        stats.put("requetes.en_attente", (long) requestExecutor.queuedRequests());
+        stats.put("connexions.v2", (long) MultiplexedSession.openSessions());
+        stats.put("flux.v2", (long) MultiplexedSession.openStreams());
+        stats.put("catalogue.fichiers", (long) catalog.size());
+        stats.put("catalogue.journal", catalog.journalRecords());
+        stats.put("uploads.sessions", (long) uploadSessions.size());
+        stats.put("controle.erreurs", checksumErrors.get());
+        stats.put("compression.chunks", compressedChunks.get());
+        if (readCache != null) {
+            stats.put("cache.hits", readCache.hits());
+            stats.put("cache.misses", readCache.misses());
+            stats.put("cache.partages", readCache.shared());
+            stats.put("cache.evictions", readCache.evictions());
+            stats.put("cache.octets", readCache.bytes());
+        }
+        for (int i = 0; i < slaveList.size(); i++) {
+            SlavePool pool = slaveList.get(i).pool;
+            String prefix = "slave." + (i + 1) + ".";
+            stats.put(prefix + "disponible", pool.isUp() ? 1L : 0L);
+            stats.put(prefix + "latence_us", pool.latencyMicros());
+            stats.put(prefix + "debit_ko_s", pool.throughput() < 0 ? -1 : pool.throughput() / 1024);
+            SlaveInfo slave = slaveList.get(i);
+            stats.put(prefix + "ecriture_ko_s", slave.writeRate < 0 ? -1 : slave.writeRate / 1024);
+            stats.put(prefix + "libre_mo", slave.freeSpace < 0 ? -1 : slave.freeSpace / (1024 * 1024));
+        }
+
+        requeteServeur.writeInt(stats.size());
+        for (Map.Entry<String, Long> stat : stats.entrySet()) {
+            requeteServeur.writeUTF(stat.getKey());
+            requeteServeur.writeLong(stat.getValue());
+        }
+    }
+
+    private void handleUpload(Connection client) {
+        DataOutputStream requeteServeur = client.out;
         try {
-            boolean isDirectory = requeteClient.readBoolean();
+            boolean isDirectory = client.in.readBoolean();
             File destination = new File(SERVER_DIR);
+            boolean success;
             if (isDirectory) {
-                receiveDirectory(requeteClient, destination);
+                PackUpload packs = new PackUpload();
+                success = receiveDirectory(client, destination, "", packs);
+                success &= packs.finish();
             } else {
-                receiveFile(requeteClient, destination);
+                success = receiveFile(client, destination);
             }
+            // Le succès n'est annoncé que si toutes les parties ont été acquittées par les slaves
+            requeteServeur.writeUTF(success ? "OK" : "ERREUR: Distribution incomplète vers les slaves");
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private void receiveFile(DataInputStream data, File destination) throws IOException {
-        String fileName = data.readUTF();
-        long fileSize = data.readLong();
+    private boolean receiveFile(Connection client, File destination) throws IOException {
+        String fileName = client.readText();
+        long fileSize = client.in.readLong();
+        return storeFile(client.in, fileName, fileSize);
+    }
 
+    /** Découpe en chunks un fichier lu sur le flux client et le distribue sur les slaves. */
+    private boolean storeFile(DataInputStream data, String fileName, long fileSize) throws IOException {
         System.out.println("Réception du fichier: " + fileName + " (Taille: " + fileSize + " bytes)");
 
-        // Lire tout le fichier en mémoire
-        byte[] fileData = new byte[(int) fileSize];
-        data.readFully(fileData);
-        System.out.println("Fichier reçu avec succès.");
+        if (slaveList.isEmpty() || !Catalog.isStorableName(fileName)) {
+            System.out.println(slaveList.isEmpty() ? "ERREUR: Aucun slave serveur n'est configuré"
+                    : "ERREUR: Nom de fichier trop long (" + fileName.length() + " caractères)");
+            // Consommer les données pour garder le flux aligné (dossiers)
+            skipBytes(data, fileSize, new byte[TRANSFER_BUFFER_SIZE]);
+            return false;
+        }
 
-        if (slaveList.isEmpty()) {
-            System.out.println("ERREUR: Aucun slave serveur n'est configuré");
-            return;
+        // Découper le fichier en chunks de taille fixe, répartis selon le débit des slaves, et écrits
+        // sous une nouvelle version : la version en place reste lisible jusqu'à l'entrée au catalogue
+        long chunkSize = CHUNK_SIZE;
+        int chunkCount = chunkCount(fileSize, chunkSize);
+        int[] chunkSlaves = placeChunks(fileSize, chunkSize);
+        int[] chunkCrcs = new int[chunkCount];
+        long version = catalog.nextVersion();
+        String storedName = Catalog.storedName(fileName, version);
+        int acknowledged = relayChunks(data, storedName, fileSize, chunkSize, chunkSlaves, chunkCrcs, 0, chunkCount,
+                index -> { });
+
+        if (acknowledged == chunkCount) {
+            Catalog.FileEntry replaced = catalog.put(fileName, fileSize, chunkSize, chunkSlaves, chunkCrcs, version);
+            invalidateCache(fileName);
+            releaseReplaced(replaced);
+            System.out.println("Distribution du fichier terminée (" + chunkCount + " chunks).");
+            return true;
         }
+        System.out.println("ERREUR: " + acknowledged + "/" + chunkCount + " chunks acquittés pour " + fileName);
+        releaseChunks(storedName, chunkSlaves);
+        return false;
+    }
 
-        // Diviser le fichier en parties égales
-        int slaveCount = slaveList.size();
-        int partSize = (int) (fileSize / slaveCount);
-        int lastPartSize = (int) (fileSize - (long) partSize * (slaveCount - 1));
+    /** Libère ce qu'occupait la version remplacée d'un fichier, une fois la nouvelle entrée au catalogue. */
+    private void releaseReplaced(Catalog.FileEntry replaced) {
+        if (replaced != null) {
+            releaseEntries(List.of(replaced));
+        }
+    }
 
-        // Envoyer chaque partie à un slave
-        for (int i = 0; i < slaveCount; i++) {
-            SlaveInfo slave = slaveList.get(i);
-            int currentPartSize = (i == slaveCount - 1) ? lastPartSize : partSize;
+    /**
+     * Supprime en arrière-plan ce qu'occupaient sur les slaves des entrées sorties du catalogue (remplacées
+     * ou supprimées) : les chunks de leur version, quels que soient les slaves qui les détiennent, et leurs
+     * fichiers groupés. Un DELETE_BATCH et un PACK_RELEASE au plus par slave. Une lecture encore engagée sur
+     * ces entrées échoue au lieu de mêler deux versions.
+     */
+    private void releaseEntries(Collection<Catalog.FileEntry> entries) {
+        Map<Integer, List<String>> chunks = new TreeMap<>();
+        Map<Integer, List<Catalog.FileEntry>> packed = new TreeMap<>();
+        for (Catalog.FileEntry entry : entries) {
+            if (entry.isPacked()) {
+                packed.computeIfAbsent(entry.chunkSlaves[0], index -> new ArrayList<>()).add(entry);
+                continue;
+            }
+            Set<Integer> holders = new TreeSet<>();
+            for (int slaveIndex : entry.chunkSlaves) {
+                holders.add(slaveIndex);
+            }
+            for (int slaveIndex : holders) {
+                chunks.computeIfAbsent(slaveIndex, index -> new ArrayList<>()).add(entry.storedName());
+            }
+        }
+        Set<Integer> slaves = new TreeSet<>(chunks.keySet());
+        slaves.addAll(packed.keySet());
+        for (int slaveIndex : slaves) {
+            releaseOnSlave(slaveList.get(slaveIndex), chunks.getOrDefault(slaveIndex, List.of()),
+                    packed.getOrDefault(slaveIndex, List.of()));
+        }
+    }
+
+    /** Supprime en arrière-plan les chunks stockés sous storedName (upload échoué ou abandonné). */
+    private void releaseChunks(String storedName, int[] chunkSlaves) {
+        Set<Integer> holders = new TreeSet<>();
+        for (int slaveIndex : chunkSlaves) {
+            holders.add(slaveIndex);
+        }
+        for (int slaveIndex : holders) {
+            releaseOnSlave(slaveList.get(slaveIndex), List.of(storedName), List.of());
+        }
+    }
+
+    private void releaseOnSlave(SlaveInfo slave, List<String> storedNames, List<Catalog.FileEntry> packed) {
+        submitOrRun(() -> {
+            boolean released = (storedNames.isEmpty() || deleteOnSlave(slave, storedNames))
+                    && (packed.isEmpty() || releasePacksOnSlave(slave, packed));
+            if (!released) {
+                System.out.println("Données orphelines sur le slave " + slave.ip + ":" + slave.port + " ("
+                        + storedNames.size() + " fichiers en chunks, " + packed.size() + " fichiers groupés)");
+            }
+            return null;
+        });
+    }
+
+    /** Signale au slave des fichiers groupés qui ne sont plus au catalogue (PACK_RELEASE) ; vrai s'il a confirmé. */
+    private boolean releasePacksOnSlave(SlaveInfo slave, List<Catalog.FileEntry> entries) {
+        if (!slave.isConnected()) {
+            return false;
+        }
+        try (SlavePool.Connection connection = slave.pool.acquire()) {
+            connection.out.writeUTF("PACK_RELEASE");
+            connection.out.writeInt(entries.size());
+            for (Catalog.FileEntry entry : entries) {
+                connection.out.writeInt(entry.packSegment);
+                connection.out.writeLong(entry.packOffset);
+                connection.out.writeLong(entry.size);
+            }
+            connection.out.flush();
+            boolean confirmed = "OK".equals(connection.in.readUTF());
+            connection.done();
+            return confirmed;
+        } catch (IOException e) {
+            System.err.println("Échec de la libération des fichiers groupés sur le slave " + slave.ip + ": "
+                    + e.getMessage());
+            return false;
+        }
+    }
+
+    /** Slave de chaque chunk d'un fichier (voir {@link Placement}). */
+    private static int[] placeChunks(long fileSize, long chunkSize) {
+        int[] chunkSlaves = new int[chunkCount(fileSize, chunkSize)];
+        for (int index = 0; index < chunkSlaves.length; index++) {
+            chunkSlaves[index] = placement.next(chunkLength(fileSize, chunkSize, index));
+        }
+        return chunkSlaves;
+    }
+
+    /**
+     * Relaie les chunks [first, end) lus à la suite sur le flux client vers leurs slaves, qui les stockent
+     * sous storedName, découpés en chunks de chunkSize octets. Chaque chunk est écrit vers son slave par une tâche dédiée pendant que la lecture
+     * du client continue sur les chunks suivants. Renvoie le nombre de chunks acquittés ;
+     * onAcknowledged est appelé pour chacun, après que son CRC32C a été rangé dans chunkCrcs.
+     */
+    private int relayChunks(DataInputStream data, String storedName, long fileSize, long chunkSize,
+            int[] chunkSlaves, int[] chunkCrcs, int first, int end, IntConsumer onAcknowledged) throws IOException {
+        List<Future<Boolean>> chunks = new ArrayList<>(end - first);
+        for (int index = first; index < end; index++) {
+            // Borner les chunks en vol : la mémoire reste fixe même si les slaves ralentissent
+            if (index - first >= UPLOAD_INFLIGHT_CHUNKS) {
+                awaitPart(chunks.get(index - first - UPLOAD_INFLIGHT_CHUNKS));
+            }
 
-            if (!slave.isConnected) {
+            SlaveInfo slave = slaveList.get(chunkSlaves[index]);
+            long chunkLength = chunkLength(fileSize, chunkSize, index);
+            int chunkIndex = index;
+
+            if (!slave.isConnected()) {
                 System.out.println("ERREUR: Slave " + slave.ip + ":" + slave.port + " non connecté");
+                skipBytes(data, chunkLength, new byte[TRANSFER_BUFFER_SIZE]);
+                chunks.add(CompletableFuture.completedFuture(false));
                 continue;
             }
 
-            byte[] partData = new byte[currentPartSize];
-            System.arraycopy(fileData, i * partSize, partData, 0, currentPartSize);
+            TransferWindow window = new TransferWindow(UPLOAD_WINDOW_BLOCKS, TRANSFER_BUFFER_SIZE);
+            try {
+                chunks.add(slaveExecutor
+                        .submit(() -> sendPartToSlave(slave, storedName, chunkIndex, chunkLength, window, chunkCrcs)));
+            } catch (RejectedExecutionException e) {
+                // Pool saturé : le chunk est relayé directement par ce thread
+                chunks.add(CompletableFuture.completedFuture(
+                        sendPartToSlave(slave, storedName, data, chunkLength, chunkIndex, chunkCrcs)));
+                continue;
+            }
+            relayPart(data, window, chunkLength);
+        }
 
-            sendPartToSlave(slave, fileName, partData, i + 1);
+        // Attendre l'acquittement de chaque chunk
+        int acknowledged = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            if (awaitPart(chunks.get(i))) {
+                onAcknowledged.accept(first + i);
+                acknowledged++;
+            }
         }
+        return acknowledged;
+    }
 
-        System.out.println("Distribution du fichier terminée.");
+    /** Ouvre une session d'upload en plusieurs flux ; répond OK, l'identifiant et la taille des chunks. */
+    private void handleUploadBegin(Connection client) throws IOException {
+        DataOutputStream requeteServeur = client.out;
+        String fileName = client.readText();
+        long fileSize = client.in.readLong();
+        if (slaveList.isEmpty()) {
+            requeteServeur.writeUTF("ERREUR: Aucun slave serveur n'est configuré");
+            return;
+        }
+        if (!Catalog.isStorableName(fileName)) {
+            requeteServeur.writeUTF("ERREUR: Nom de fichier trop long");
+            return;
+        }
+
+        long chunkSize = CHUNK_SIZE;
+        UploadSession session = uploadSessions.begin(fileName, fileSize, chunkSize,
+                placeChunks(fileSize, chunkSize), catalog.nextVersion());
+        System.out.println("Session d'upload " + session.id + " ouverte pour " + fileName + " (" + fileSize
+                + " bytes, " + session.chunkCount() + " chunks)");
+
+        requeteServeur.writeUTF("OK");
+        requeteServeur.writeUTF(session.id);
+        requeteServeur.writeLong(session.chunkSize);
+    }
+
+    /**
+     * Reçoit une plage d'une session : identifiant, position et longueur, suivis des octets.
+     * La plage doit être alignée sur les chunks ; sinon ses octets sont consommés et refusés.
+     */
+    private void handleUploadRange(DataInputStream requeteClient, DataOutputStream requeteServeur) throws IOException {
+        String sessionId = requeteClient.readUTF();
+        long offset = requeteClient.readLong();
+        long length = requeteClient.readLong();
+
+        UploadSession session = uploadSessions.get(sessionId);
+        if (session == null || !session.isAligned(offset, length)) {
+            skipBytes(requeteClient, length, new byte[TRANSFER_BUFFER_SIZE]);
+            requeteServeur.writeUTF(session == null ? "ERREUR: Session d'upload inconnue"
+                    : "ERREUR: Plage non alignée sur les chunks");
+            return;
+        }
+        session.touch();
+
+        int first = (int) (offset / session.chunkSize);
+        int end = offset + length == session.size ? session.chunkCount() : (int) ((offset + length) / session.chunkSize);
+        // Les chunks gardent la taille fixée à l'ouverture, même si CHUNK_SIZE a changé depuis
+        int[] chunkCrcs = new int[session.chunkCount()];
+        int acknowledged = relayChunks(requeteClient, session.storedName(), session.size, session.chunkSize,
+                session.chunkSlaves, chunkCrcs, first, end, index -> {
+                    try {
+                        uploadSessions.chunkReceived(session, index, chunkCrcs[index]);
+                    } catch (IOException e) {
+                        System.err.println("Erreur d'écriture du journal des uploads: " + e.getMessage());
+                    }
+                });
+        session.touch();
+
+        requeteServeur.writeUTF(acknowledged == end - first ? "OK"
+                : "ERREUR: " + acknowledged + "/" + (end - first) + " chunks acquittés");
     }
 
-    private void sendPartToSlave(SlaveInfo slave, String fileName, byte[] partData, int partNumber) {
-        try (Socket slaveSocket = new Socket(slave.ip, slave.port);
-                DataOutputStream slaveOut = new DataOutputStream(slaveSocket.getOutputStream())) {
+    /** Termine une session : le fichier entre au catalogue si tous ses chunks ont été acquittés. */
+    private void handleUploadCommit(DataInputStream requeteClient, DataOutputStream requeteServeur) throws IOException {
+        String sessionId = requeteClient.readUTF();
+        UploadSession session = uploadSessions.get(sessionId);
+        if (session == null) {
+            requeteServeur.writeUTF("ERREUR: Session d'upload inconnue");
+            return;
+        }
+        if (!session.isComplete()) {
+            session.touch();
+            requeteServeur.writeUTF("ERREUR: " + session.receivedCount() + "/" + session.chunkCount()
+                    + " chunks reçus");
+            return;
+        }
 
-            slaveOut.writeUTF("UPLOAD_PART");
+        if (!session.close()) {
+            requeteServeur.writeUTF("ERREUR: Session d'upload déjà terminée");
+            return;
+        }
+
+        // L'entrée au catalogue précède la fin de la session : un arrêt entre les deux laisse une session
+        // à valider de nouveau, jamais des chunks que rien ne référence
+        Catalog.FileEntry replaced = catalog.put(session.fileName, session.size, session.chunkSize,
+                session.chunkSlaves, session.chunkCrcs(), session.version);
+        if (!uploadSessions.end(session)) {
+            System.err.println("Session d'upload " + session.id + " terminée pendant sa validation");
+        }
+        invalidateCache(session.fileName);
+        releaseReplaced(replaced);
+        System.out.println("Upload de " + session.fileName + " validé (" + session.chunkCount() + " chunks).");
+        requeteServeur.writeUTF("OK");
+    }
+
+    /** Liste des chunks déjà acquittés d'une session : OK, nombre de chunks, puis les numéros reçus. */
+    private void handleUploadStatus(DataInputStream requeteClient, DataOutputStream requeteServeur) throws IOException {
+        UploadSession session = uploadSessions.get(requeteClient.readUTF());
+        if (session == null) {
+            requeteServeur.writeUTF("ERREUR: Session d'upload inconnue");
+            return;
+        }
+        session.touch();
+
+        int[] received = session.receivedChunks();
+        requeteServeur.writeUTF("OK");
+        requeteServeur.writeInt(session.chunkCount());
+        requeteServeur.writeInt(received.length);
+        for (int index : received) {
+            requeteServeur.writeInt(index);
+        }
+    }
+
+    /** Abandonne les sessions sans activité et supprime les chunks qu'elles avaient déjà écrits. */
+    private void expireUploadSessions() {
+        long limit = System.currentTimeMillis() - UPLOAD_SESSION_TIMEOUT;
+        try {
+            for (UploadSession session : uploadSessions.idleSince(limit)) {
+                if (!session.close() || !uploadSessions.end(session)) {
+                    continue; // en cours de validation
+                }
+                System.out.println("Session d'upload " + session.id + " abandonnée (" + session.fileName + ")");
+                releaseChunks(session.storedName(), session.chunkSlaves);
+            }
+            uploadSessions.compactIfNeeded();
+        } catch (IOException e) {
+            System.err.println("Erreur d'écriture du journal des uploads: " + e.getMessage());
+        }
+    }
+
+    /** Nombre de chunks d'un fichier ; un fichier vide garde un chunk vide pour rester visible. */
+    private static int chunkCount(long fileSize, long chunkSize) {
+        return (int) Math.max(1, (fileSize + chunkSize - 1) / chunkSize);
+    }
+
+    private static long chunkLength(long fileSize, long chunkSize, int index) {
+        return Math.min(chunkSize, fileSize - (long) index * chunkSize);
+    }
+
+    /**
+     * Copie un chunk du flux client dans la fenêtre de sa tâche d'envoi.
+     * Si l'envoi échoue, le reste du chunk est consommé pour garder le flux aligné.
+     */
+    private void relayPart(DataInputStream data, TransferWindow window, long partSize) throws IOException {
+        long remaining = partSize;
+        while (remaining > 0) {
+            TransferWindow.Block block;
+            try {
+                block = window.acquire();
+            } catch (IOException e) {
+                skipBytes(data, remaining, new byte[TRANSFER_BUFFER_SIZE]);
+                return;
+            }
+
+            int read;
+            try {
+                read = data.read(block.data, 0, (int) Math.min(block.data.length, remaining));
+            } catch (IOException e) {
+                window.fail(e);
+                throw e;
+            }
+            if (read == -1) {
+                EOFException eof = new EOFException("Fin de flux prématurée pendant la réception");
+                window.fail(eof);
+                throw eof;
+            }
+            block.length = read;
+            window.publish(block);
+            remaining -= read;
+        }
+        window.finish();
+    }
+
+    private boolean awaitPart(Future<Boolean> part) {
+        try {
+            return part.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    private boolean sendPartToSlave(SlaveInfo slave, String fileName, int chunkIndex, long partSize,
+            TransferWindow window, int[] chunkCrcs) {
+        try (SlavePool.Connection connection = slave.pool.acquire()) {
+            DataOutputStream slaveOut = connection.out;
+
+            // Le premier bloc décide de la compression : un contenu déjà compressé part tel quel
+            TransferWindow.Block block = window.take();
+            boolean compress = COMPRESSION && slave.compression && block != null
+                    && ChunkFrames.worthCompressing(block.data, block.length);
+
+            slaveOut.writeUTF(compress ? "UPLOAD_PART_FRAMED" : "UPLOAD_PART");
             slaveOut.writeUTF(fileName);
-            slaveOut.writeInt(partNumber); // Numéro de la partie
-            slaveOut.writeLong(partData.length);
-            slaveOut.write(partData);
+            slaveOut.writeInt(chunkIndex); // Numéro du chunk
+            slaveOut.writeLong(partSize); // taille d'origine, même compressé
+
+            // Le CRC32C des données d'origine est calculé au passage et suit les données : le slave le compare au sien
+            CRC32C crc = new CRC32C();
+            try (ChunkFrames.Writer frames = compress ? new ChunkFrames.Writer() : null) {
+                while (block != null) {
+                    crc.update(block.data, 0, block.length);
+                    if (compress) {
+                        frames.write(slaveOut, block.data, 0, block.length);
+                    } else {
+                        slaveOut.write(block.data, 0, block.length);
+                    }
+                    window.recycle(block);
+                    block = window.take();
+                }
+            }
+            slaveOut.writeInt((int) crc.getValue());
+            if (compress) {
+                compressedChunks.incrementAndGet();
+            }
+            slaveOut.flush();
 
-            System.out.println("Partie " + partNumber + " envoyée avec succès au slave " + slave.ip + ":" + slave.port);
+            boolean acknowledged = readPartAck(slave, chunkIndex, connection.in);
+            connection.done();
+            chunkCrcs[chunkIndex] = (int) crc.getValue();
+            return acknowledged;
         } catch (IOException e) {
+            window.fail(e);
             System.out
                     .println("ERREUR lors de l'envoi au slave " + slave.ip + ":" + slave.port + ": " + e.getMessage());
+            return false;
         }
     }
 
-    private void receiveDirectory(DataInputStream data, File destination) throws IOException {
-        String dirName = data.readUTF();
+    private boolean sendPartToSlave(SlaveInfo slave, String fileName, DataInputStream data, long partSize,
+            int chunkIndex, int[] chunkCrcs) throws IOException {
+        byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+        SlavePool.Connection connection = null;
+        try {
+            connection = slave.pool.acquire();
+            connection.out.writeUTF("UPLOAD_PART");
+            connection.out.writeUTF(fileName);
+            connection.out.writeInt(chunkIndex); // Numéro du chunk
+            connection.out.writeLong(partSize);
+        } catch (IOException e) {
+            System.out
+                    .println("ERREUR lors de l'envoi au slave " + slave.ip + ":" + slave.port + ": " + e.getMessage());
+            closeQuietly(connection);
+            connection = null;
+        }
+
+        // Relayer le chunk par blocs : on lit le client et on écrit au slave au même rythme.
+        // Une panne du slave n'interrompt pas la lecture, sinon le flux client serait désaligné.
+        CRC32C crc = new CRC32C();
+        long remaining = partSize;
+        while (remaining > 0) {
+            int read = data.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                closeQuietly(connection);
+                throw new EOFException("Fin de flux prématurée pendant la réception de " + fileName);
+            }
+            remaining -= read;
+            crc.update(buffer, 0, read);
+
+            if (connection != null) {
+                try {
+                    connection.out.write(buffer, 0, read);
+                } catch (IOException e) {
+                    System.out.println(
+                            "ERREUR lors de l'envoi au slave " + slave.ip + ":" + slave.port + ": " + e.getMessage());
+                    closeQuietly(connection);
+                    connection = null;
+                }
+            }
+        }
+
+        boolean acknowledged = false;
+        if (connection != null) {
+            try {
+                connection.out.writeInt((int) crc.getValue());
+                connection.out.flush();
+                acknowledged = readPartAck(slave, chunkIndex, connection.in);
+                connection.done();
+            } catch (IOException e) {
+                System.out.println(
+                        "ERREUR lors de l'envoi au slave " + slave.ip + ":" + slave.port + ": " + e.getMessage());
+            }
+        }
+        closeQuietly(connection);
+        chunkCrcs[chunkIndex] = (int) crc.getValue();
+        return acknowledged;
+    }
+
+    private boolean readPartAck(SlaveInfo slave, int chunkIndex, DataInputStream slaveIn) throws IOException {
+        String reponse = slaveIn.readUTF();
+        if ("OK".equals(reponse)) {
+            System.out.println("Chunk " + chunkIndex + " envoyé avec succès au slave " + slave.ip + ":" + slave.port);
+            return true;
+        }
+        System.out.println("ERREUR: Chunk " + chunkIndex + " refusé par le slave " + slave.ip + ":" + slave.port
+                + " (" + reponse + ")");
+        return false;
+    }
+
+    private static void skipBytes(DataInputStream data, long count, byte[] buffer) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            int read = data.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new EOFException("Fin de flux prématurée");
+            }
+            remaining -= read;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // rien à faire
+        }
+    }
+
+    /**
+     * Reçoit un dossier : chaque fichier est enregistré sous son chemin logique (path/dossier/nom).
+     * Les petits fichiers (PACK_FILE_MAX) sont confiés à packs pour être groupés ; les autres sont
+     * découpés en chunks comme un fichier isolé. L'arborescence locale garde les dossiers vides.
+     */
+    private boolean receiveDirectory(Connection client, File destination, String path, PackUpload packs)
+            throws IOException {
+        DataInputStream data = client.in;
+        String dirName = client.readText();
+        String dirPath = path + dirName + "/";
         File currentDir = new File(destination, dirName);
         currentDir.mkdirs();
 
+        boolean success = true;
         int itemCount = data.readInt();
         for (int i = 0; i < itemCount; i++) {
             boolean isFile = data.readBoolean();
-            if (isFile) {
-                receiveFile(data, currentDir);
+            if (!isFile) {
+                success &= receiveDirectory(client, currentDir, dirPath, packs);
+                continue;
+            }
+            String fileName = dirPath + client.readText();
+            long fileSize = data.readLong();
+            // Un nom trop long n'est pas groupé : storeFile le refuse en consommant ses octets
+            if (fileSize <= PACK_FILE_MAX && !slaveList.isEmpty() && Catalog.isStorableName(fileName)) {
+                byte[] content = new byte[(int) fileSize];
+                data.readFully(content);
+                packs.add(fileName, content);
             } else {
-                receiveDirectory(data, currentDir);
+                success &= storeFile(data, fileName, fileSize);
             }
         }
+        return success;
     }
 
-    private void handleList(DataInputStream requeteClient, DataOutputStream requeteServeur) throws IOException {
-        // Initialiser le compteur total de fichiers
-        int totalFiles = 0;
+    /**
+     * Petits fichiers d'un upload de dossier : accumulés en lots de PACK_BATCH_SIZE octets, chaque lot
+     * part en un seul PACK_APPEND vers un slave (à tour de rôle) pendant que la lecture du dossier continue.
+     * Les lots en vol sont bornés comme les chunks (UPLOAD_INFLIGHT_CHUNKS).
+     */
+    private final class PackUpload {
+        private final List<Future<Boolean>> batches = new ArrayList<>();
+        private PackBatch current = new PackBatch();
+        private int awaited; // lots déjà acquittés ou en échec
+        private boolean success = true;
+
+        void add(String fileName, byte[] content) {
+            current.add(fileName, content);
+            if (current.bytes >= PACK_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        /** Envoie les fichiers restants et attend tous les lots ; vrai si tous ont été acquittés. */
+        boolean finish() {
+            flush();
+            while (awaited < batches.size()) {
+                success &= awaitPart(batches.get(awaited++));
+            }
+            return success;
+        }
+
+        private void flush() {
+            if (current.names.isEmpty()) {
+                return;
+            }
+            if (batches.size() - awaited >= UPLOAD_INFLIGHT_CHUNKS) {
+                success &= awaitPart(batches.get(awaited++));
+            }
+            PackBatch batch = current;
+            current = new PackBatch();
+            int slaveIndex = placement.next(batch.bytes);
+            batches.add(submitOrRun(() -> sendPackBatch(slaveIndex, batch)));
+        }
+    }
+
+    /** Lot de petits fichiers destinés à un même segment. */
+    private static final class PackBatch {
+        final List<String> names = new ArrayList<>();
+        final List<byte[]> contents = new ArrayList<>();
+        final List<Integer> crcs = new ArrayList<>();
+        long bytes;
+
+        void add(String fileName, byte[] content) {
+            CRC32C crc = new CRC32C();
+            crc.update(content);
+            names.add(fileName);
+            contents.add(content);
+            crcs.add((int) crc.getValue());
+            bytes += content.length;
+        }
+    }
+
+    /** Envoie un lot au slave et enregistre ses fichiers au catalogue une fois le lot acquitté. */
+    private boolean sendPackBatch(int slaveIndex, PackBatch batch) {
+        SlaveInfo slave = slaveList.get(slaveIndex);
+        if (!slave.isConnected()) {
+            System.out.println("ERREUR: Slave " + slave.ip + ":" + slave.port + " non connecté");
+            return false;
+        }
+        try (SlavePool.Connection connection = slave.pool.acquire()) {
+            DataOutputStream slaveOut = connection.out;
+            slaveOut.writeUTF("PACK_APPEND");
+            slaveOut.writeInt(batch.names.size());
+            for (int i = 0; i < batch.names.size(); i++) {
+                byte[] content = batch.contents.get(i);
+                slaveOut.writeUTF(batch.names.get(i));
+                slaveOut.writeLong(content.length);
+                slaveOut.writeInt(batch.crcs.get(i));
+                slaveOut.write(content);
+            }
+            slaveOut.flush();
+
+            String response = connection.in.readUTF();
+            if (!"OK".equals(response)) {
+                connection.done();
+                System.out.println("ERREUR: Lot de " + batch.names.size() + " fichiers refusé par le slave "
+                        + slave.ip + ":" + slave.port + " : " + response);
+                return false;
+            }
+            int segment = connection.in.readInt();
+            List<Long> sizes = new ArrayList<>();
+            List<Long> offsets = new ArrayList<>();
+            for (int i = 0; i < batch.names.size(); i++) {
+                sizes.add((long) batch.contents.get(i).length);
+                offsets.add(connection.in.readLong());
+            }
+            List<Catalog.FileEntry> replaced = catalog.putPacked(batch.names, sizes, slaveIndex, segment, offsets,
+                    batch.crcs);
+            for (String name : batch.names) {
+                invalidateCache(name);
+            }
+            connection.done();
+            releaseEntries(replaced);
+            return true;
+        } catch (IOException e) {
+            System.out
+                    .println("ERREUR lors de l'envoi au slave " + slave.ip + ":" + slave.port + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void handleList(Connection client) throws IOException {
+        DataOutputStream requeteServeur = client.out;
+        // Réponse directe depuis le catalogue, sans interroger les slaves
         List<String> allFiles = new ArrayList<>();
+        for (Catalog.FileEntry entry : catalog.entries()) {
+            allFiles.add(entry.name);
+        }
+
+        // Envoyer le nombre total de fichiers au client
+        requeteServeur.writeInt(allFiles.size());
+
+        // Envoyer la liste des fichiers au client
+        for (String fileName : allFiles) {
+            client.writeText(fileName);
+            requeteServeur.writeBoolean(true); // Tous sont des fichiers
+        }
+    }
+
+    /**
+     * Liste par pages depuis le catalogue trié : motif (préfixe ou glob), jeton de continuation
+     * (dernier nom reçu, vide au départ) et taille de page. La réponse se termine par le jeton suivant,
+     * vide quand la liste est épuisée.
+     */
+    private void handleListPage(Connection client) throws IOException {
+        DataOutputStream requeteServeur = client.out;
+        NameFilter filter = NameFilter.parse(client.readText());
+        String after = client.readText();
+        int limit = Math.max(1, Math.min(MAX_LIST_PAGE, client.in.readInt()));
+
+        List<String> page = filter.page(catalog.names(), after, limit);
+        requeteServeur.writeInt(page.size());
+        for (String fileName : page) {
+            client.writeText(fileName);
+            requeteServeur.writeBoolean(true);
+        }
+        client.writeText(NameFilter.nextToken(page, limit));
+    }
+
+    /** Nature d'un nom côté serveur : FILE (avec sa taille), DIR ou ABSENT. */
+    private void handleStat(Connection client) throws IOException {
+        DataOutputStream requeteServeur = client.out;
+        String name = client.readText();
+        Catalog.FileEntry entry = catalog.get(name);
+        if (entry != null) {
+            requeteServeur.writeUTF("FILE");
+            requeteServeur.writeLong(entry.size);
+        } else if (new File(SERVER_DIR, name).isDirectory() || !catalogChildren(name + "/").isEmpty()) {
+            requeteServeur.writeUTF("DIR");
+        } else {
+            requeteServeur.writeUTF("ABSENT");
+        }
+    }
+
+    private void snapshotCatalog() {
+        try {
+            if (catalog.journalRecords() > 0) {
+                catalog.snapshot();
+            }
+        } catch (IOException e) {
+            System.err.println("Erreur lors de l'instantané du catalogue: " + e.getMessage());
+        }
+    }
 
-        // Collecter les fichiers de chaque slave
+    /**
+     * Premier démarrage avec un catalogue vide : les fichiers déjà présents sur les slaves
+     * sont recensés une fois (LIST puis LIST_CHUNKS) et enregistrés. Si plusieurs versions d'un
+     * fichier sont restées sur les slaves, la plus récente complète est retenue.
+     */
+    private void importCatalogFromSlaves() throws IOException {
+        // Tous les slaves sont interrogés en même temps ; les noms sont fusionnés et triés
+        List<Future<Set<String>>> listings = new ArrayList<>();
         for (SlaveInfo slave : slaveList) {
-            if (!slave.isConnected)
-                continue;
+            listings.add(submitOrRun(() -> listSlaveFiles(slave)));
+        }
+        Set<String> names = new TreeSet<>();
+        for (Future<Set<String>> listing : listings) {
+            try {
+                names.addAll(listing.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Import du catalogue interrompu", e);
+            } catch (ExecutionException e) {
+                // slave injoignable : déjà signalé par listSlaveFiles
+            }
+        }
 
-            try (Socket slaveSocket = new Socket(slave.ip, slave.port)) {
-                DataOutputStream slaveOut = new DataOutputStream(slaveSocket.getOutputStream());
-                DataInputStream slaveIn = new DataInputStream(slaveSocket.getInputStream());
+        // Noms stockés regroupés par fichier, de la version la plus récente à la plus ancienne
+        Map<String, TreeMap<Long, String>> storedVersions = new TreeMap<>();
+        for (String storedName : names) {
+            long version = Catalog.storedVersion(storedName);
+            if (version == 0) {
+                continue; // pas un nom écrit par ce serveur
+            }
+            String name = storedName.substring(0, storedName.lastIndexOf(".v"));
+            storedVersions.computeIfAbsent(name, key -> new TreeMap<>(Comparator.reverseOrder()))
+                    .put(version, storedName);
+        }
 
-                // Demander la liste au slave
-                slaveOut.writeUTF("LIST");
+        int imported = 0;
+        for (Map.Entry<String, TreeMap<Long, String>> file : storedVersions.entrySet()) {
+            boolean complete = false;
+            for (Map.Entry<Long, String> stored : file.getValue().entrySet()) {
+                complete = importFile(file.getKey(), stored.getValue(), stored.getKey());
+                if (complete) {
+                    imported++;
+                    break;
+                }
+            }
+            if (!complete) {
+                System.out.println("Fichier incomplet ignoré à l'import: " + file.getKey());
+            }
+        }
+        System.out.println("Catalogue reconstruit depuis les slaves: " + imported + " fichiers");
+    }
 
-                // Lire le nombre de fichiers du slave
-                int slaveFileCount = slaveIn.readInt();
+    /**
+     * Enregistre un fichier dont les chunks sont stockés sous storedName ; faux si les chunks 0..n-1
+     * ne sont pas tous présents.
+     */
+    private boolean importFile(String name, String storedName, long version) throws IOException {
+        List<Future<Map<Integer, long[]>>> queries = new ArrayList<>();
+        for (SlaveInfo slave : slaveList) {
+            queries.add(submitOrRun(() -> queryChunks(slave, storedName)));
+        }
+        Map<Integer, long[]> chunks = new HashMap<>();
+        Map<Integer, Integer> holders = new HashMap<>();
+        for (int slaveIndex = 0; slaveIndex < queries.size(); slaveIndex++) {
+            for (Map.Entry<Integer, long[]> chunk : awaitChunks(queries.get(slaveIndex)).entrySet()) {
+                chunks.put(chunk.getKey(), chunk.getValue());
+                holders.put(chunk.getKey(), slaveIndex);
+            }
+        }
 
-                // Lire chaque nom de fichier
-                for (int i = 0; i < slaveFileCount; i++) {
-                    String fileName = slaveIn.readUTF();
-                    // Ne garder que le nom de base du fichier (sans .partX)
-                    String baseFileName = fileName.replaceFirst("\\.part[0-9]+$", "");
-                    if (!allFiles.contains(baseFileName)) {
-                        allFiles.add(baseFileName);
-                    }
+        // Les chunks 0..n-1 doivent tous être présents
+        int chunkCount = chunks.size();
+        int[] chunkSlaves = new int[chunkCount];
+        int[] chunkCrcs = new int[chunkCount];
+        long size = 0;
+        for (int index = 0; index < chunkCount; index++) {
+            if (!chunks.containsKey(index)) {
+                return false;
+            }
+            chunkSlaves[index] = holders.get(index);
+            size += chunks.get(index)[0];
+            chunkCrcs[index] = (int) chunks.get(index)[1];
+        }
+        if (chunkCount == 0) {
+            return false;
+        }
+        long chunkSize = chunkCount > 1 ? chunks.get(0)[0] : Math.max(1, size);
+        catalog.put(name, size, chunkSize, chunkSlaves, chunkCrcs, version);
+        return true;
+    }
+
+    /**
+     * Migration des fichiers de l'ancien serveur, découpés en parties nom.partN sur les slaves : chaque
+     * fichier complet est relu partie après partie, découpé en chunks comme un upload et enregistré au
+     * catalogue, puis ses parties sont supprimées. Un fichier déjà au catalogue n'est pas réécrit. Un
+     * fichier incomplet ou en échec reste en place, et la migration reprend au démarrage suivant ; une
+     * fois toutes les parties migrées, il ne reste qu'un LIST_LEGACY vide par slave.
+     */
+    private void migrateLegacyParts() {
+        Map<String, TreeMap<Integer, LegacyPart>> files = new TreeMap<>();
+        for (int slaveIndex = 0; slaveIndex < slaveList.size(); slaveIndex++) {
+            for (LegacyPart part : listLegacyParts(slaveIndex)) {
+                files.computeIfAbsent(part.fileName, name -> new TreeMap<>()).put(part.number, part);
+            }
+        }
+        if (files.isEmpty()) {
+            return;
+        }
+
+        System.out.println("Migration de " + files.size() + " fichiers de l'ancien format");
+        int migrated = 0;
+        for (Map.Entry<String, TreeMap<Integer, LegacyPart>> file : files.entrySet()) {
+            String name = file.getKey();
+            TreeMap<Integer, LegacyPart> parts = file.getValue();
+            if (parts.firstKey() != 1 || parts.lastKey() != parts.size()) {
+                System.out.println("Fichier de l'ancien format incomplet, laissé en place: " + name);
+                continue;
+            }
+            try {
+                if (catalog.get(name) == null && !migrateLegacyFile(name, parts.values())) {
+                    System.out.println("ERREUR: Migration de " + name + " incomplète, parties laissées en place");
+                    continue;
                 }
+                Set<Integer> holders = new TreeSet<>();
+                for (LegacyPart part : parts.values()) {
+                    holders.add(part.slave);
+                }
+                for (int slaveIndex : holders) {
+                    deleteLegacyParts(slaveList.get(slaveIndex), name);
+                }
+                migrated++;
             } catch (IOException e) {
-                System.err.println("Erreur de connexion au slave " + slave.ip + ":" + slave.port);
+                System.err.println("Erreur de migration de " + name + ": " + e.getMessage());
             }
         }
+        System.out.println("Fichiers de l'ancien format migrés: " + migrated + "/" + files.size());
+    }
 
-        // Envoyer le nombre total de fichiers uniques au client
-        requeteServeur.writeInt(allFiles.size());
+    /** Relit les parties d'un fichier de l'ancien format et le stocke en chunks ; faux si un chunk manque. */
+    private boolean migrateLegacyFile(String name, Collection<LegacyPart> parts) throws IOException {
+        long size = 0;
+        for (LegacyPart part : parts) {
+            size += part.size;
+        }
+        try (LegacyInput input = new LegacyInput(parts)) {
+            return storeFile(new DataInputStream(new BufferedInputStream(input, TRANSFER_BUFFER_SIZE)), name, size);
+        }
+    }
 
-        // Envoyer la liste des fichiers uniques au client
-        for (String fileName : allFiles) {
-            requeteServeur.writeUTF(fileName);
-            requeteServeur.writeBoolean(true); // Tous sont des fichiers
+    /** Parties de l'ancien format présentes sur un slave ; aucune s'il est injoignable. */
+    private List<LegacyPart> listLegacyParts(int slaveIndex) {
+        List<LegacyPart> parts = new ArrayList<>();
+        SlaveInfo slave = slaveList.get(slaveIndex);
+        if (!slave.isConnected()) {
+            return parts;
+        }
+        try (SlavePool.Connection connection = slave.pool.acquire()) {
+            connection.out.writeUTF("LIST_LEGACY");
+            connection.out.flush();
+            int count = connection.in.readInt();
+            for (int i = 0; i < count; i++) {
+                parts.add(new LegacyPart(connection.in.readUTF(), connection.in.readInt(), slaveIndex,
+                        connection.in.readLong()));
+            }
+            connection.done();
+        } catch (IOException e) {
+            System.err.println("Erreur de connexion au slave " + slave.ip + ":" + slave.port);
         }
+        return parts;
     }
 
-    private void handleDownloadFile(DataInputStream requeteClient, DataOutputStream requeteServeur) throws IOException {
-        String fileName = requeteClient.readUTF();
+    private void deleteLegacyParts(SlaveInfo slave, String name) throws IOException {
+        try (SlavePool.Connection connection = slave.pool.acquire()) {
+            connection.out.writeUTF("DELETE_LEGACY");
+            connection.out.writeUTF(name);
+            connection.out.flush();
+            if (!"OK".equals(connection.in.readUTF())) {
+                throw new IOException("Parties de " + name + " non supprimées sur " + slave.ip + ":" + slave.port);
+            }
+            connection.in.readInt();
+            connection.done();
+        }
+    }
+
+    /** Partie d'un fichier de l'ancien format : numéro (à partir de 1), slave qui la détient et taille. */
+    private static final class LegacyPart {
+        final String fileName;
+        final int number;
+        final int slave;
+        final long size;
+
+        LegacyPart(String fileName, int number, int slave, long size) {
+            this.fileName = fileName;
+            this.number = number;
+            this.slave = slave;
+            this.size = size;
+        }
+    }
+
+    /** Octets d'un fichier de l'ancien format, lus partie après partie sur leurs slaves (READ_LEGACY_PART). */
+    private final class LegacyInput extends InputStream {
+        private final Iterator<LegacyPart> parts;
+        private SlavePool.Connection connection;
+        private long remaining;
+
+        LegacyInput(Collection<LegacyPart> parts) {
+            this.parts = parts.iterator();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (remaining == 0) {
+                if (!parts.hasNext()) {
+                    return -1;
+                }
+                open(parts.next());
+            }
+            int read = connection.in.read(b, off, (int) Math.min(len, remaining));
+            if (read == -1) {
+                throw new EOFException("Partie de l'ancien format tronquée");
+            }
+            remaining -= read;
+            if (remaining == 0) {
+                finishPart();
+            }
+            return read;
+        }
+
+        private void open(LegacyPart part) throws IOException {
+            SlaveInfo slave = slaveList.get(part.slave);
+            connection = slave.pool.acquire();
+            connection.out.writeUTF("READ_LEGACY_PART");
+            connection.out.writeUTF(part.fileName);
+            connection.out.writeInt(part.number);
+            connection.out.flush();
+            if (!"OK".equals(connection.in.readUTF())) {
+                throw new IOException("Partie " + part.number + " de " + part.fileName + " introuvable sur "
+                        + slave.ip + ":" + slave.port);
+            }
+            remaining = connection.in.readLong();
+            if (remaining != part.size) {
+                throw new IOException("Partie " + part.number + " de " + part.fileName + " modifiée");
+            }
+            if (remaining == 0) {
+                finishPart();
+            }
+        }
+
+        private void finishPart() {
+            connection.done();
+            connection.close();
+            connection = null;
+        }
+
+        /** Une partie lue à moitié ferme sa connexion au lieu de la rendre au pool. */
+        @Override
+        public void close() {
+            if (connection != null) {
+                connection.close();
+                connection = null;
+            }
+        }
+    }
+
+    private void handleDownloadFile(Connection client) throws IOException {
+        String fileName = client.readText();
         // Récupérer les parties du fichier depuis les slaves et les combiner
-        assembleFileFromSlaves(fileName, requeteServeur);
+        assembleFileFromSlaves(fileName, client);
     }
 
-    private void assembleFileFromSlaves(String fileName, DataOutputStream clientOutput) throws IOException {
-        // Première étape : vérifier la taille totale
-        long totalSize = 0;
-        List<File> partFiles = new ArrayList<>();
+    /**
+     * Carte de placement d'un fichier, pour une lecture directe sur les slaves sans passer par
+     * ce serveur : nom, nom des chunks sur les slaves, taille, puis pour chaque chunk l'adresse et le
+     * port de son slave, son numéro, sa position dans le fichier, sa taille et son CRC32C.
+     */
+    private void handleLocate(Connection client) throws IOException {
+        DataOutputStream requeteServeur = client.out;
+        String fileName = client.readText();
+        Catalog.FileEntry entry = catalog.get(fileName);
+        if (entry == null) {
+            requeteServeur.writeUTF("ERREUR: Fichier " + fileName + " introuvable.");
+            return;
+        }
+        if (entry.isPacked()) {
+            requeteServeur.writeUTF("ERREUR: Fichier " + fileName + " groupé, lu par le serveur principal.");
+            return;
+        }
 
-        for (int i = 0; i < slaveList.size(); i++) {
-            SlaveInfo slave = slaveList.get(i);
-            if (!slave.isConnected)
-                continue;
+        requeteServeur.writeUTF("OK");
+        client.writeText(entry.name);
+        client.writeText(entry.storedName());
+        requeteServeur.writeLong(entry.size);
+        requeteServeur.writeInt(entry.chunkCount());
+        for (int index = 0; index < entry.chunkCount(); index++) {
+            SlaveInfo slave = slaveList.get(entry.chunkSlaves[index]);
+            requeteServeur.writeUTF(slave.ip);
+            requeteServeur.writeInt(slave.port);
+            requeteServeur.writeInt(index);
+            requeteServeur.writeLong(index * entry.chunkSize);
+            requeteServeur.writeLong(entry.chunkLength(index));
+            requeteServeur.writeInt(entry.chunkCrcs[index]);
+        }
+    }
 
-            try (Socket slaveSocket = new Socket(slave.ip, slave.port)) {
-                DataOutputStream out = new DataOutputStream(slaveSocket.getOutputStream());
-                DataInputStream in = new DataInputStream(slaveSocket.getInputStream());
-
-                out.writeUTF("DOWNLOAD_PART");
-                out.writeUTF(fileName);
-                out.writeInt(i + 1);
-
-                String response = in.readUTF();
-                if ("OK".equals(response)) {
-                    long partSize = in.readLong();
-                    totalSize += partSize;
-
-                    // Sauvegarder temporairement la partie
-                    File tempPart = new File(SERVER_DIR, fileName + ".part" + (i + 1));
-                    try (FileOutputStream fos = new FileOutputStream(tempPart)) {
-                        byte[] buffer = new byte[4096];
-                        int bytesRead;
-                        while ((bytesRead = in.read(buffer)) != -1) {
-                            fos.write(buffer, 0, bytesRead);
-                        }
+    private void assembleFileFromSlaves(String fileName, Connection client) throws IOException {
+        DataOutputStream clientOutput = client.out;
+        // Le catalogue donne la taille et l'emplacement de chaque chunk sans interroger les slaves
+        Catalog.FileEntry entry = catalog.get(fileName);
+        if (entry == null) {
+            clientOutput.writeUTF("ERREUR: Fichier " + fileName + " introuvable.");
+            return;
+        }
+
+        // Envoyer les informations du fichier au client avant le premier octet
+        clientOutput.writeUTF("OK");
+        client.writeText(fileName);
+        clientOutput.writeLong(entry.size);
+        streamRange(entry, 0, entry.size, clientOutput);
+    }
+
+    /**
+     * Plage d'un fichier : nom, position, longueur (tronquée à la fin du fichier) et version attendue
+     * (0 : quelconque). Répond OK, la taille du fichier, sa version, la taille de ses chunks et la longueur
+     * envoyée, puis les octets.
+     * Si le fichier a changé depuis la version attendue, répond MODIFIE : une reprise doit repartir de zéro.
+     */
+    private void handleDownloadRange(Connection client) throws IOException {
+        DataInputStream requeteClient = client.in;
+        DataOutputStream requeteServeur = client.out;
+        String fileName = client.readText();
+        long offset = requeteClient.readLong();
+        long length = requeteClient.readLong();
+        long expectedVersion = requeteClient.readLong();
+
+        Catalog.FileEntry entry = catalog.get(fileName);
+        if (entry == null) {
+            requeteServeur.writeUTF("ERREUR: Fichier " + fileName + " introuvable.");
+            return;
+        }
+        if (expectedVersion != 0 && expectedVersion != entry.version) {
+            requeteServeur.writeUTF("MODIFIE");
+            return;
+        }
+        if (offset < 0 || offset > entry.size || length < 0) {
+            requeteServeur.writeUTF("ERREUR: Plage invalide pour " + fileName + " (" + entry.size + " octets)");
+            return;
+        }
+        length = Math.min(length, entry.size - offset);
+
+        requeteServeur.writeUTF("OK");
+        requeteServeur.writeLong(entry.size);
+        requeteServeur.writeLong(entry.version);
+        requeteServeur.writeLong(entry.chunkSize);
+        requeteServeur.writeLong(length);
+        streamRange(entry, offset, length, requeteServeur);
+    }
+
+    /** Partie d'un chunk à transmettre : les octets [from, from + count) du chunk chunkIndex. */
+    private static final class Part {
+        final Catalog.FileEntry entry;
+        final int chunkIndex;
+        final long from;
+        final long count;
+
+        Part(Catalog.FileEntry entry, int chunkIndex, long from, long count) {
+            this.entry = entry;
+            this.chunkIndex = chunkIndex;
+            this.from = from;
+            this.count = count;
+        }
+
+        boolean isWholeChunk() {
+            return from == 0 && count == entry.chunkLength(chunkIndex);
+        }
+    }
+
+    /**
+     * Parties des chunks couvrant [offset, offset + length) d'un fichier : seuls les chunks concernés,
+     * et les chunks partiellement couverts sur leur plage utile seulement.
+     */
+    private static List<Part> rangeParts(Catalog.FileEntry entry, long offset, long length) {
+        List<Part> parts = new ArrayList<>();
+        if (length == 0) {
+            return parts;
+        }
+        int first = (int) (offset / entry.chunkSize);
+        int end = (int) ((offset + length - 1) / entry.chunkSize) + 1;
+        for (int index = first; index < end; index++) {
+            long chunkStart = index * entry.chunkSize;
+            long from = Math.max(offset, chunkStart) - chunkStart;
+            long to = Math.min(offset + length, chunkStart + entry.chunkLength(index)) - chunkStart;
+            parts.add(new Part(entry, index, from, to - from));
+        }
+        return parts;
+    }
+
+    /** Transmet les octets [offset, offset + length) d'un fichier. */
+    private void streamRange(Catalog.FileEntry entry, long offset, long length, DataOutputStream clientOutput)
+            throws IOException {
+        streamParts(rangeParts(entry, offset, length), DOWNLOAD_PREFETCH_CHUNKS, clientOutput);
+    }
+
+    /**
+     * Transmet des parties de chunks à la suite, d'un ou de plusieurs fichiers. Les parties suivantes
+     * sont préchargées en avance (prefetch à la fois, sans tenir compte des limites de fichiers) dans
+     * des fenêtres bornées ; une partie que le pool ne peut pas prendre, ou dont la lecture en avance
+     * attend encore une connexion quand vient son tour, est lue directement, sur une place réservée du pool.
+     * Un chunk entier admis par le cache de lecture en est servi, ou y est chargé une seule fois ;
+     * si ce chargement échoue, la partie est relue directement sur le slave.
+     */
+    private void streamParts(List<Part> parts, int prefetch, DataOutputStream clientOutput) throws IOException {
+        Prefetch[] prefetches = new Prefetch[parts.size()];
+        List<CompletableFuture<ReadCache.Chunk>> cached = new ArrayList<>(Collections.nCopies(parts.size(), null));
+        int prefetched = 0;
+        try {
+            for (int i = 0; i < parts.size(); i++) {
+                while (prefetched < parts.size() && prefetched < i + prefetch) {
+                    Part part = parts.get(prefetched);
+                    CompletableFuture<ReadCache.Chunk> chunk = cachedChunk(part);
+                    if (chunk != null) {
+                        cached.set(prefetched, chunk);
+                    } else {
+                        prefetches[prefetched] = prefetchPart(part);
                     }
-                    partFiles.add(tempPart);
+                    prefetched++;
+                }
+
+                Part part = parts.get(i);
+                CompletableFuture<ReadCache.Chunk> chunk = cached.get(i);
+                cached.set(i, null);
+                if (chunk != null && writeCachedChunk(part.entry, part.chunkIndex, chunk, clientOutput)) {
+                    continue;
+                }
+
+                // Sans connexion, la lecture en avance attendrait derrière celles qui retiennent le pool
+                Prefetch current = prefetches[i];
+                prefetches[i] = null;
+                if (current == null || current.cancel()) {
+                    copyPartFromSlave(slaveList.get(part.entry.chunkSlaves[part.chunkIndex]), part.entry,
+                            part.chunkIndex, part.from, part.count, clientOutput);
+                    continue;
+                }
+
+                // Transmettre la partie dès que ses premiers blocs arrivent
+                TransferWindow.Block block;
+                while ((block = current.window.take()) != null) {
+                    clientOutput.write(block.data, 0, block.length);
+                    current.window.recycle(block);
+                }
+            }
+            clientOutput.flush();
+        } catch (IOException e) {
+            for (Prefetch pending : prefetches) {
+                if (pending != null) {
+                    pending.cancel();
+                    pending.window.fail(e);
+                }
+            }
+            for (CompletableFuture<ReadCache.Chunk> chunk : cached) {
+                if (chunk != null) {
+                    chunk.thenAccept(ReadCache.Chunk::release);
                 }
             }
+            throw e;
+        }
+    }
+
+    /** Chunk entier servi par le cache de lecture ; null s'il faut le lire sur le slave. */
+    private CompletableFuture<ReadCache.Chunk> cachedChunk(Part part) {
+        if (readCache == null || !part.isWholeChunk()) {
+            return null;
         }
+        return readCache.get(part.entry.name, part.entry.version, part.chunkIndex, part.count,
+                chunk -> loadChunk(part.entry, part.chunkIndex, chunk));
+    }
 
-        // Envoyer les informations du fichier au client
-        clientOutput.writeUTF("OK");
-        clientOutput.writeUTF(fileName);
-        clientOutput.writeLong(totalSize);
-
-        // Assembler et envoyer le fichier
-        for (File partFile : partFiles) {
-            try (FileInputStream fis = new FileInputStream(partFile)) {
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    clientOutput.write(buffer, 0, bytesRead);
+    /**
+     * Transmet un chunk du cache de lecture puis rend sa référence ; renvoie false, sans rien avoir écrit,
+     * si son chargement a échoué : l'appelant le lit alors sur le slave.
+     */
+    private boolean writeCachedChunk(Catalog.FileEntry entry, int chunkIndex, CompletableFuture<ReadCache.Chunk> cached,
+            DataOutputStream clientOutput) throws IOException {
+        ReadCache.Chunk chunk;
+        try {
+            chunk = cached.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cached.thenAccept(ReadCache.Chunk::release);
+            throw new InterruptedIOException("Lecture du chunk " + chunkIndex + " de " + entry.name + " interrompue");
+        } catch (ExecutionException e) {
+            System.out.println("Cache de lecture : chunk " + chunkIndex + " de " + entry.name
+                    + " lu sur le slave (" + e.getCause().getMessage() + ")");
+            return false;
+        }
+        try {
+            chunk.writeTo(clientOutput, new byte[TRANSFER_BUFFER_SIZE]);
+        } finally {
+            chunk.release();
+        }
+        return true;
+    }
+
+    /**
+     * Chunk entier lu sur son slave, dans les tranches du cache de lecture. Le chargement ne retient jamais
+     * sa connexion en attendant un client : il passe devant les lectures en avance, qui attendent le leur.
+     */
+    private void loadChunk(Catalog.FileEntry entry, int chunkIndex, ReadCache.Chunk chunk) throws IOException {
+        SlaveInfo slave = slaveList.get(entry.chunkSlaves[chunkIndex]);
+        long count = entry.chunkLength(chunkIndex);
+        try (SlavePool.Connection connection = slave.pool.acquireUrgent();
+                PartDownload part = openPartDownload(connection, slave, entry, chunkIndex, 0, count)) {
+            CRC32C crc = new CRC32C();
+            byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+            while (chunk.remaining() > 0) {
+                int read = part.data.read(buffer, 0, (int) Math.min(buffer.length, chunk.remaining()));
+                if (read == -1) {
+                    throw new EOFException("Chunk " + chunkIndex + " de " + entry.name + " tronqué");
+                }
+                crc.update(buffer, 0, read);
+                chunk.put(buffer, 0, read);
+            }
+            verifyChunk(entry, chunkIndex, part.expectedCrc, crc);
+            connection.done();
+        }
+    }
+
+    private static void invalidateCache(String fileName) {
+        if (readCache != null) {
+            readCache.invalidate(fileName);
+        }
+    }
+
+    /**
+     * Partie lue en avance dans sa fenêtre. Sa tâche de lecture et le client se la disputent : la tâche la prend
+     * en obtenant sa connexion, le client en l'atteignant avant ; la tâche est alors annulée.
+     */
+    private static final class Prefetch {
+        final TransferWindow window = new TransferWindow(DOWNLOAD_WINDOW_BLOCKS, TRANSFER_BUFFER_SIZE);
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private Future<?> task;
+
+        /** Côté tâche : prend la partie ; false si le client l'a déjà reprise. */
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        boolean isClaimed() {
+            return claimed.get();
+        }
+
+        /** Côté client : reprend la partie si la tâche n'a pas encore de connexion (true). */
+        boolean cancel() {
+            if (!claimed.compareAndSet(false, true)) {
+                return false;
+            }
+            task.cancel(true); // interrompt l'attente d'une connexion
+            return true;
+        }
+    }
+
+    /** Lance la lecture d'une partie de chunk ; null si le pool est plein. */
+    private Prefetch prefetchPart(Part part) {
+        SlaveInfo slave = slaveList.get(part.entry.chunkSlaves[part.chunkIndex]);
+        Prefetch prefetch = new Prefetch();
+        try {
+            prefetch.task = slaveExecutor.submit(
+                    () -> fetchPartFromSlave(slave, part.entry, part.chunkIndex, part.from, part.count, prefetch));
+            return prefetch;
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    private <T> Future<T> submitOrRun(Callable<T> task) {
+        try {
+            return slaveExecutor.submit(task);
+        } catch (RejectedExecutionException e) {
+            try {
+                return CompletableFuture.completedFuture(task.call());
+            } catch (Exception ex) {
+                CompletableFuture<T> failed = new CompletableFuture<>();
+                failed.completeExceptionally(ex);
+                return failed;
+            }
+        }
+    }
+
+    private Map<Integer, long[]> awaitChunks(Future<Map<Integer, long[]>> query) {
+        try {
+            return query.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Collections.emptyMap();
+        } catch (ExecutionException e) {
+            return Collections.emptyMap();
+        }
+    }
+
+    /** Noms stockés des fichiers dont un slave détient des chunks (sans .chunkN), lus page par page. */
+    private Set<String> listSlaveFiles(SlaveInfo slave) {
+        Set<String> names = new HashSet<>();
+        if (!slave.isConnected()) {
+            return names;
+        }
+        try (SlavePool.Connection connection = slave.pool.acquire()) {
+            String token = "";
+            do {
+                connection.out.writeUTF("LIST_PAGE");
+                connection.out.writeUTF("");
+                connection.out.writeUTF(token);
+                connection.out.writeInt(MAX_LIST_PAGE);
+                connection.out.flush();
+
+                int count = connection.in.readInt();
+                for (int i = 0; i < count; i++) {
+                    // Ne garder que le nom de base du fichier (sans .chunkX)
+                    names.add(connection.in.readUTF().replaceFirst("\\.chunk[0-9]+$", ""));
                 }
+                token = connection.in.readUTF();
+            } while (!token.isEmpty());
+            connection.done();
+        } catch (IOException e) {
+            System.err.println("Erreur de connexion au slave " + slave.ip + ":" + slave.port);
+        }
+        return names;
+    }
+
+    /** Chunks d'un fichier présents sur un slave (numéro → {taille, CRC32C}) ; vide si le slave est injoignable. */
+    private Map<Integer, long[]> queryChunks(SlaveInfo slave, String fileName) {
+        Map<Integer, long[]> chunks = new HashMap<>();
+        if (!slave.isConnected()) {
+            return chunks;
+        }
+        try (SlavePool.Connection connection = slave.pool.acquire()) {
+            connection.out.writeUTF("LIST_CHUNKS");
+            connection.out.writeUTF(fileName);
+            connection.out.flush();
+
+            int count = connection.in.readInt();
+            for (int i = 0; i < count; i++) {
+                int index = connection.in.readInt();
+                chunks.put(index, new long[] { connection.in.readLong(), connection.in.readInt() });
             }
-            partFile.delete();
+            connection.done();
+        } catch (IOException e) {
+            System.err.println("Erreur de connexion au slave " + slave.ip + ":" + slave.port);
         }
+        return chunks;
     }
 
-    private void handleDownloadDir(DataInputStream requeteClient, DataOutputStream requeteServeur) throws IOException {
-        String dirName = requeteClient.readUTF();
+    private void fetchPartFromSlave(SlaveInfo slave, Catalog.FileEntry entry, int chunkIndex, long from,
+            long count, Prefetch prefetch) {
+        TransferWindow window = prefetch.window;
+        boolean claimed = false;
+        try (SlavePool.Connection connection = slave.pool.acquire()) {
+            if (!prefetch.claim()) {
+                connection.done(); // partie reprise par le client : connexion inutilisée, rendue au pool
+                return;
+            }
+            claimed = true;
+            readPartInto(connection, slave, entry, chunkIndex, from, count, window);
+        } catch (IOException e) {
+            window.fail(e);
+            if (claimed || !prefetch.isClaimed()) {
+                System.err.println(
+                        "Erreur de lecture sur le slave " + slave.ip + ":" + slave.port + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void readPartInto(SlavePool.Connection connection, SlaveInfo slave, Catalog.FileEntry entry,
+            int chunkIndex, long from, long count, TransferWindow window) throws IOException {
+        try (PartDownload part = openPartDownload(connection, slave, entry, chunkIndex, from, count)) {
+            CRC32C crc = new CRC32C();
+            long remaining = count;
+            while (remaining > 0) {
+                TransferWindow.Block block = window.acquire();
+                int read = part.data.read(block.data, 0, (int) Math.min(block.data.length, remaining));
+                if (read == -1) {
+                    throw new EOFException("Chunk " + chunkIndex + " de " + entry.name + " tronqué");
+                }
+                crc.update(block.data, 0, read);
+                remaining -= read;
+                if (remaining == 0) {
+                    // Contrôle avant le dernier bloc : un chunk corrompu n'est jamais transmis en entier
+                    verifyChunk(entry, chunkIndex, part.expectedCrc, crc);
+                }
+                block.length = read;
+                window.publish(block);
+            }
+            window.finish();
+            connection.done();
+        }
+    }
+
+    /** Lit une partie attendue par le client, sans attendre derrière les lectures en avance. */
+    private void copyPartFromSlave(SlaveInfo slave, Catalog.FileEntry entry, int chunkIndex, long from, long count,
+            DataOutputStream clientOutput) throws IOException {
+        try (SlavePool.Connection connection = slave.pool.acquireUrgent();
+                PartDownload part = openPartDownload(connection, slave, entry, chunkIndex, from, count)) {
+            CRC32C crc = new CRC32C();
+            byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+            long remaining = count;
+            while (remaining > 0) {
+                int read = part.data.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new EOFException("Chunk " + chunkIndex + " de " + entry.name + " tronqué");
+                }
+                crc.update(buffer, 0, read);
+                remaining -= read;
+                if (remaining == 0) {
+                    verifyChunk(entry, chunkIndex, part.expectedCrc, crc);
+                }
+                clientOutput.write(buffer, 0, read);
+            }
+            connection.done();
+        }
+    }
+
+    /** Compare le CRC32C calculé à la lecture à celui enregistré par le slave (-1 : chunk partiel, sans contrôle). */
+    private void verifyChunk(Catalog.FileEntry entry, int chunkIndex, long expectedCrc, CRC32C crc)
+            throws IOException {
+        if (expectedCrc >= 0 && (int) crc.getValue() != (int) expectedCrc) {
+            checksumErrors.incrementAndGet();
+            throw new IOException("Chunk " + chunkIndex + " de " + entry.name + " corrompu (CRC32C invalide)");
+        }
+    }
+
+    /**
+     * Demande au slave les count octets d'un chunk à partir de from : le chunk entier par DOWNLOAD_PART
+     * (DOWNLOAD_PART_FRAMED si le slave compresse : le chunk arrive tel qu'il est stocké et se décompresse
+     * ici), une partie seulement par DOWNLOAD_PART_RANGE. Le CRC32C attendu n'est connu que pour le chunk
+     * entier ; il vaut -1 si la lecture ne peut pas être contrôlée (plage partielle, chunk écrit sans CRC).
+     * Un fichier groupé est lu dans son segment par READ_PACK, contrôlé par le CRC du catalogue.
+     */
+    private PartDownload openPartDownload(SlavePool.Connection connection, SlaveInfo slave,
+            Catalog.FileEntry entry, int chunkIndex, long from, long count) throws IOException {
+        DataOutputStream out = connection.out;
+        DataInputStream in = connection.in;
+
+        boolean whole = from == 0 && count == entry.chunkLength(chunkIndex);
+        if (entry.isPacked()) {
+            out.writeUTF("READ_PACK");
+            out.writeInt(entry.packSegment);
+            out.writeLong(entry.packOffset + from);
+            out.writeLong(count);
+            out.flush();
+            if (!"OK".equals(in.readUTF())) {
+                connection.done();
+                throw new IOException("Fichier groupé " + entry.name + " introuvable");
+            }
+            if (in.readLong() != count) {
+                throw new IOException("Fichier groupé " + entry.name + " tronqué");
+            }
+            return new PartDownload(in, null, whole ? Integer.toUnsignedLong(entry.packCrc) : -1);
+        }
+
+        boolean acceptsFrames = whole && slave.compression;
+        out.writeUTF(!whole ? "DOWNLOAD_PART_RANGE" : acceptsFrames ? "DOWNLOAD_PART_FRAMED" : "DOWNLOAD_PART");
+        out.writeUTF(entry.storedName());
+        out.writeInt(chunkIndex);
+        if (!whole) {
+            out.writeLong(from);
+            out.writeLong(count);
+        }
+        out.flush();
+
+        String response = in.readUTF();
+        if (!"OK".equals(response)) {
+            connection.done(); // réponse complète, la connexion reste utilisable
+            throw new IOException("Chunk " + chunkIndex + " de " + entry.name + " introuvable");
+        }
+        long partSize = in.readLong();
+        if (partSize != count) {
+            throw new IOException("Chunk " + chunkIndex + " de " + entry.name + " modifié pendant la lecture");
+        }
+        if (!whole) {
+            return new PartDownload(in, null, -1);
+        }
+        long expectedCrc = Integer.toUnsignedLong(in.readInt());
+        if (acceptsFrames && in.readBoolean()) {
+            in.readLong(); // taille stockée : les trames se délimitent d'elles-mêmes
+            ChunkFrames.Input frames = new ChunkFrames.Input(in, count);
+            return new PartDownload(frames, frames, expectedCrc);
+        }
+        return new PartDownload(in, null, expectedCrc);
+    }
+
+    /** Octets d'origine d'une partie de chunk en cours de lecture, et leur CRC32C attendu (-1 : chunk partiel). */
+    private static final class PartDownload implements Closeable {
+        final InputStream data;
+        final long expectedCrc;
+        private final ChunkFrames.Input frames; // décompression à libérer, null si le chunk arrive brut
+
+        PartDownload(InputStream data, ChunkFrames.Input frames, long expectedCrc) {
+            this.data = data;
+            this.frames = frames;
+            this.expectedCrc = expectedCrc;
+        }
+
+        /** Ne ferme jamais la connexion, rendue au pool par son propriétaire. */
+        @Override
+        public void close() {
+            if (frames != null) {
+                frames.close();
+            }
+        }
+    }
+
+    private void handleDownloadDir(Connection client) throws IOException {
+        String dirName = client.readText();
         File directory = new File(SERVER_DIR, dirName);
-        sendDirectory(requeteServeur, directory);
+        sendDirectory(client, directory, dirName + "/");
     }
 
-    private void sendDirectory(DataOutputStream response, File directory) throws IOException {
-        if (!directory.exists() || !directory.isDirectory()) {
+    /**
+     * Envoie un dossier : ses fichiers sont les entrées du catalogue directement sous son chemin logique,
+     * lues sur les slaves ; ses sous-dossiers viennent du catalogue et de l'arborescence locale (dossiers vides).
+     */
+    private void sendDirectory(Connection client, File directory, String path) throws IOException {
+        DataOutputStream response = client.out;
+        List<Catalog.FileEntry> files = new ArrayList<>();
+        Set<String> subdirectories = new TreeSet<>();
+        for (String name : catalogChildren(path)) {
+            int separator = name.indexOf('/', path.length());
+            if (separator < 0) {
+                files.add(catalog.get(name));
+            } else {
+                subdirectories.add(name.substring(path.length(), separator));
+            }
+        }
+        File[] localDirs = directory.listFiles(File::isDirectory);
+        if (localDirs != null) {
+            for (File dir : localDirs) {
+                subdirectories.add(dir.getName());
+            }
+        }
+        files.removeIf(Objects::isNull); // supprimé entre-temps
+        if (files.isEmpty() && subdirectories.isEmpty() && !directory.isDirectory()) {
             response.writeUTF("ERREUR: Dossier introuvable.");
             return;
         }
 
         response.writeUTF("OK");
-        response.writeUTF(directory.getName());
-
-        File[] files = directory.listFiles();
-        response.writeInt(files != null ? files.length : 0);
-
-        if (files != null) {
-            for (File file : files) {
-                response.writeBoolean(file.isFile());
-                if (file.isFile()) {
-                    sendFile(response, file);
-                } else {
-                    sendDirectory(response, file);
-                }
-            }
+        client.writeText(directory.getName());
+        response.writeInt(files.size() + subdirectories.size());
+        for (Catalog.FileEntry entry : files) {
+            response.writeBoolean(true);
+            response.writeUTF("OK");
+            client.writeText(entry.name.substring(path.length()));
+            response.writeLong(entry.size);
+            streamRange(entry, 0, entry.size, response);
+        }
+        for (String subdirectory : subdirectories) {
+            response.writeBoolean(false);
+            sendDirectory(client, new File(directory, subdirectory), path + subdirectory + "/");
         }
     }
 
-    private void sendFile(DataOutputStream response, File file) throws IOException {
-        if (!file.exists() || !file.isFile()) {
-            response.writeUTF("ERREUR: Fichier introuvable.");
+    /**
+     * Téléchargement d'un dossier d'un seul tenant : d'abord le manifeste (OK, nom du dossier, chemins
+     * relatifs des sous-dossiers, puis chemin relatif et taille de chaque fichier), ensuite le contenu
+     * des fichiers bout à bout dans l'ordre du manifeste. Les parties des fichiers suivants sont lues
+     * sur leurs slaves pendant que le fichier courant est transmis (DOWNLOAD_TREE_PREFETCH en avance).
+     */
+    private void handleDownloadTree(Connection client) throws IOException {
+        String dirName = client.readText();
+        String path = dirName + "/";
+        File directory = new File(SERVER_DIR, dirName);
+
+        List<Catalog.FileEntry> files = new ArrayList<>();
+        Set<String> subdirectories = new TreeSet<>();
+        for (String name : catalogChildren(path)) {
+            Catalog.FileEntry entry = catalog.get(name);
+            if (entry == null) {
+                continue; // supprimé entre-temps
+            }
+            files.add(entry);
+            for (int separator = name.indexOf('/', path.length()); separator >= 0;
+                    separator = name.indexOf('/', separator + 1)) {
+                subdirectories.add(name.substring(path.length(), separator));
+            }
+        }
+        collectDirectories(directory, "", subdirectories); // dossiers vides
+        DataOutputStream response = client.out;
+        if (files.isEmpty() && !directory.isDirectory()) {
+            response.writeUTF("ERREUR: Dossier introuvable.");
             return;
         }
 
         response.writeUTF("OK");
-        response.writeUTF(file.getName());
-        response.writeLong(file.length());
+        client.writeText(directory.getName());
+        response.writeInt(subdirectories.size());
+        for (String subdirectory : subdirectories) {
+            client.writeText(subdirectory);
+        }
+        response.writeInt(files.size());
+        List<Part> parts = new ArrayList<>();
+        for (Catalog.FileEntry entry : files) {
+            client.writeText(entry.name.substring(path.length()));
+            response.writeLong(entry.size);
+            parts.addAll(rangeParts(entry, 0, entry.size));
+        }
+        response.flush(); // le client prépare l'arborescence pendant les premières lectures
+
+        streamParts(parts, DOWNLOAD_TREE_PREFETCH, response);
+        System.out.println("Dossier " + dirName + " envoyé (" + files.size() + " fichiers)");
+    }
+
+    private static void collectDirectories(File directory, String relativePath, Set<String> into) {
+        File[] dirs = directory.listFiles(File::isDirectory);
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            String dirPath = relativePath + dir.getName();
+            into.add(dirPath);
+            collectDirectories(dir, dirPath + "/", into);
+        }
+    }
+
+    /** Noms du catalogue sous un chemin logique (dossier terminé par /), à toute profondeur. */
+    private static List<String> catalogChildren(String path) {
+        return new ArrayList<>(catalog.names().subSet(path, path + Character.MAX_VALUE));
+    }
+
+    /** Suppression d'un fichier ; répond OK, ABSENT ou ERREUR (voir {@link #deleteFiles}). */
+    private void handleDelete(Connection client) throws IOException {
+        String filename = client.readText(); // fichier a supprimer ozy client
+        client.out.writeUTF(deleteFiles(List.of(filename)).get(filename));
+    }
 
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                response.write(buffer, 0, bytesRead);
+    /**
+     * Suppression groupée : un booléen (vrai : motif préfixe ou glob sur le catalogue, faux : liste de noms),
+     * puis le motif, ou le nombre de noms et les noms. Répond OK, le nombre de résultats, puis pour chaque
+     * nom le nom et son résultat.
+     */
+    private void handleDeleteBatch(Connection client) throws IOException {
+        List<String> names = new ArrayList<>();
+        if (client.in.readBoolean()) {
+            NameFilter filter = NameFilter.parse(client.readText());
+            names.addAll(filter.page(catalog.names(), "", Integer.MAX_VALUE));
+        } else {
+            int count = client.in.readInt();
+            for (int i = 0; i < count; i++) {
+                names.add(client.readText());
             }
         }
+
+        Map<String, String> results = deleteFiles(names);
+        DataOutputStream response = client.out;
+        response.writeUTF("OK");
+        response.writeInt(results.size());
+        for (Map.Entry<String, String> result : results.entrySet()) {
+            client.writeText(result.getKey());
+            response.writeUTF(result.getValue());
+        }
     }
 
-    private void handleDelete(DataInputStream requeteClient) {
-        try {
-            String filename = requeteClient.readUTF(); // fichier a supprimer ozy client
-            System.out.println(filename + " est " + filename);
-            // for(SlaveInfo s : slaveList) {
-            for (int i = 1; i < slaveList.size() + 1; i++) {
-                SlaveInfo s = slaveList.get(i - 1);
-                if (!s.isConnected) {
-                    continue;
-                }
-                try {
-                    Socket slave = new Socket(s.ip, s.port);
-                    DataOutputStream requeteServeur = new DataOutputStream(slave.getOutputStream());
-                    DataInputStream reponseSlave = new DataInputStream(slave.getInputStream());
-
-                    requeteServeur.writeUTF("DELETE");
-                    requeteServeur.writeUTF(filename + ".part" + i);
-
-                    String reponse = reponseSlave.readUTF();
-                    if (reponse.equals("OK")) {
-                        System.out.println("fichier supprimer sur le slave : " + s.ip);
-                    } else if (reponse.equals("ERREUR")) {
-                        System.out.println("Erreur lors de la suppression sur le slave : " + s.ip);
-                    }
+    /**
+     * Retire des fichiers du catalogue (un seul passage du journal), puis supprime leurs chunks : un seul
+     * DELETE_BATCH par slave concerné, tous les slaves en même temps. Résultat de chaque nom : OK, ABSENT
+     * (pas au catalogue), ou ERREUR si un slave n'a pas confirmé (ses chunks restent orphelins).
+     */
+    private Map<String, String> deleteFiles(List<String> names) throws IOException {
+        Map<String, Catalog.FileEntry> removed = catalog.removeAll(names);
+        Map<String, String> results = new LinkedHashMap<>();
+        Map<Integer, List<String>> bySlave = new TreeMap<>(); // noms des fichiers dont le slave a des chunks
+        List<Catalog.FileEntry> packed = new ArrayList<>();
+        for (String name : names) {
+            Catalog.FileEntry entry = removed.get(name);
+            if (entry == null) {
+                results.putIfAbsent(name, "ABSENT");
+                continue;
+            }
+            results.put(name, "OK");
+            invalidateCache(name);
+            if (entry.isPacked()) {
+                packed.add(entry); // libéré en arrière-plan : son segment est supprimé quand il est vide
+                continue;
+            }
+            // Seuls les slaves qui détiennent des chunks du fichier sont contactés
+            Set<Integer> holders = new TreeSet<>();
+            for (int slaveIndex : entry.chunkSlaves) {
+                holders.add(slaveIndex);
+            }
+            for (int slaveIndex : holders) {
+                bySlave.computeIfAbsent(slaveIndex, index -> new ArrayList<>()).add(name);
+            }
+        }
 
-                } catch (Exception e) {
-                    System.err.println("Échec de la connexion au slave : " + s.ip);
-                    e.printStackTrace();
+        Map<Integer, Future<Boolean>> requests = new TreeMap<>();
+        for (Map.Entry<Integer, List<String>> batch : bySlave.entrySet()) {
+            SlaveInfo slave = slaveList.get(batch.getKey());
+            List<String> storedNames = new ArrayList<>();
+            for (String name : batch.getValue()) {
+                storedNames.add(removed.get(name).storedName());
+            }
+            requests.put(batch.getKey(), submitOrRun(() -> deleteOnSlave(slave, storedNames)));
+        }
+        for (Map.Entry<Integer, Future<Boolean>> request : requests.entrySet()) {
+            boolean confirmed;
+            try {
+                confirmed = request.getValue().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Suppression interrompue", e);
+            } catch (ExecutionException e) {
+                confirmed = false;
+            }
+            if (!confirmed) {
+                String error = "ERREUR: Slave " + slaveList.get(request.getKey()).ip + ":"
+                        + slaveList.get(request.getKey()).port + " injoignable, chunks non supprimés";
+                for (String name : bySlave.get(request.getKey())) {
+                    results.put(name, error);
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        }
+        releaseEntries(packed);
+        System.out.println("Suppression de " + removed.size() + " fichiers (" + (results.size() - removed.size())
+                + " absents, " + bySlave.size() + " slaves)");
+        return results;
+    }
+
+    /** Envoie un lot de noms stockés à supprimer à un slave ; vrai s'il a confirmé la suppression. */
+    private boolean deleteOnSlave(SlaveInfo slave, List<String> names) {
+        if (!slave.isConnected()) {
+            return false;
+        }
+        try (SlavePool.Connection connection = slave.pool.acquire()) {
+            connection.out.writeUTF("DELETE_BATCH");
+            connection.out.writeInt(names.size());
+            for (String name : names) {
+                connection.out.writeUTF(name);
+            }
+            connection.out.flush();
+
+            if (!"OK".equals(connection.in.readUTF())) {
+                return false;
+            }
+            int chunks = 0;
+            for (int i = 0; i < names.size(); i++) {
+                chunks += connection.in.readInt();
+            }
+            connection.done();
+            System.out.println(chunks + " chunks supprimés sur le slave " + slave.ip + ":" + slave.port);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Échec de la suppression sur le slave " + slave.ip + ": " + e.getMessage());
+            return false;
         }
     }
 
@@ -453,14 +2262,23 @@ public class FileServer {
     static class SlaveInfo {
         String ip;
         int port;
-        boolean isConnected;
-        int reconnectAttempts;
+        volatile boolean compression; // accepte les chunks en trames compressées (CAPABILITIES)
+        volatile long freeSpace = -1; // espace libre déclaré par le slave (octets), -1 : inconnu
+        volatile long writeRate = -1; // débit d'écriture déclaré par le slave (octets/s), -1 : inconnu
+        volatile long statsCheckedAt; // dernier relevé de ses statistiques (ms)
+        final AtomicLong plannedBytes = new AtomicLong(); // octets placés sur le slave depuis ce relevé
+        final SlavePool pool;
 
         SlaveInfo(String ip, int port) {
             this.ip = ip;
             this.port = port;
-            this.isConnected = false;
-            this.reconnectAttempts = 0;
+            this.pool = new SlavePool(ip, port, SLAVE_POOL_MAX, SLAVE_POOL_IDLE_TIMEOUT, SLAVE_CONNECT_TIMEOUT,
+                    SLAVE_READ_TIMEOUT, SLAVE_POOL_ACQUIRE_TIMEOUT);
+        }
+
+        /** État suivi en continu par les sondes et les échanges (voir {@link SlavePool}). */
+        boolean isConnected() {
+            return pool.isUp();
         }
     }
 }
\ No newline at end of file
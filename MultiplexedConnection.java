@@ -0,0 +1,361 @@
+package client;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connexion au serveur principal en protocole v2 : après la poignée de main CONNECT_V2, toutes les
+ * commandes passent par cette seule connexion, chacune sur son propre flux. Chaque trame :
+ * [numéro de flux int][type byte][longueur int][données].
+ *
+ * OPEN ouvre un flux (nom de la commande en UTF-8), DATA porte les octets de la requête ou de la réponse
+ * au format du protocole v1, END termine un sens du flux, RESET l'abandonne, WINDOW rend du crédit à
+ * l'émetteur. La fenêtre d'un flux (octets non consommés permis à l'émetteur) part de {@link #STREAM_WINDOW}
+ * et double, jusqu'à {@link #MAX_STREAM_WINDOW}, quand la lecture attend les données alors que l'émetteur a
+ * déjà envoyé tout le crédit accordé avant le dernier WINDOW : elle suit ainsi le produit débit × aller-retour
+ * du lien, sans grandir pour un émetteur simplement lent. Le serveur applique la même règle (MultiplexedSession).
+ *
+ * Les commandes courtes se partagent la connexion de la session ; un transfert de données ouvre la sienne
+ * (voir FileClient.openTransfer), pour que les plages parallèles aient chacune leur connexion TCP.
+ */
+class MultiplexedConnection implements Closeable {
+    static final int VERSION = 2;
+    private static final byte OPEN = 1;
+    private static final byte DATA = 2;
+    private static final byte END = 3;
+    private static final byte RESET = 4;
+    private static final byte WINDOW = 5;
+    private static final int MAX_PAYLOAD = 64 * 1024;
+    private static final int STREAM_WINDOW = 1024 * 1024; // fenêtre initiale, connue des deux côtés
+    private static final int MAX_STREAM_WINDOW = 16 * 1024 * 1024; // 1 Gbit/s sur 128 ms d'aller-retour
+    private static final byte[] NO_DATA = new byte[0];
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Semaphore slots; // flux simultanés permis par le serveur
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private volatile boolean closed;
+
+    private MultiplexedConnection(Socket socket, DataInputStream in, DataOutputStream out, int maxStreams) {
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+        this.slots = new Semaphore(maxStreams);
+    }
+
+    /** Ouvre la connexion ; renvoie null si le serveur ne connaît que le protocole v1. */
+    static MultiplexedConnection open(String address, int port) throws IOException {
+        Socket socket = new Socket(address, port);
+        try {
+            socket.setTcpNoDelay(true); // chaque trame est vidée explicitement
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), MAX_PAYLOAD));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), MAX_PAYLOAD));
+            out.writeUTF("CONNECT_V2");
+            out.writeInt(VERSION);
+            out.flush();
+            if (!in.readUTF().equals("CONNECTE_V2")) {
+                socket.close();
+                return null;
+            }
+            in.readInt(); // version retenue
+            MultiplexedConnection connection = new MultiplexedConnection(socket, in, out, in.readInt());
+            Thread reader = new Thread(connection::readFrames, "dnt-v2");
+            reader.setDaemon(true);
+            reader.start();
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /** Ouvre un flux pour une commande, en attendant une place si tous les flux permis sont ouverts. */
+    Stream openStream(String command) throws IOException {
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Ouverture de flux interrompue");
+        }
+        if (closed) {
+            slots.release();
+            throw new IOException("Connexion au serveur fermée");
+        }
+        Stream stream = new Stream(nextId.incrementAndGet());
+        streams.put(stream.id, stream);
+        byte[] name = command.getBytes(StandardCharsets.UTF_8);
+        try {
+            sendFrame(stream.id, OPEN, name, 0, name.length);
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+        return stream;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // rien à faire
+        }
+    }
+
+    /** Boucle du thread de lecture : répartit les trames entre les flux jusqu'à la fermeture. */
+    private void readFrames() {
+        String reason = "Connexion au serveur fermée";
+        try {
+            while (true) {
+                int id = in.readInt();
+                byte type = in.readByte();
+                int length = in.readInt();
+                if (length < 0 || length > MAX_PAYLOAD) {
+                    throw new IOException("Trame invalide (" + length + " octets)");
+                }
+                byte[] payload = length == 0 ? NO_DATA : new byte[length];
+                in.readFully(payload);
+
+                Stream stream = streams.get(id);
+                if (stream == null) {
+                    continue; // flux déjà fermé de ce côté
+                }
+                switch (type) {
+                    case DATA:
+                        stream.input.receive(payload);
+                        break;
+                    case END:
+                        stream.input.end();
+                        break;
+                    case RESET:
+                        stream.abort(new String(payload, StandardCharsets.UTF_8));
+                        break;
+                    case WINDOW:
+                        stream.output.grant(ByteBuffer.wrap(payload).getInt());
+                        break;
+                    default:
+                        throw new IOException("Type de trame inconnu: " + type);
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                reason = "Connexion au serveur perdue : " + e.getMessage();
+            }
+        } finally {
+            close();
+            for (Stream stream : streams.values()) {
+                stream.abort(reason);
+            }
+        }
+    }
+
+    private void sendFrame(int id, byte type, byte[] data, int offset, int length) throws IOException {
+        synchronized (out) {
+            out.writeInt(id);
+            out.writeByte(type);
+            out.writeInt(length);
+            out.write(data, offset, length);
+            out.flush();
+        }
+    }
+
+    /** Flux d'une commande : requête tamponnée (à vider avant de lire la réponse), réponse lue jusqu'à END. */
+    final class Stream implements Closeable {
+        final int id;
+        final DataOutputStream request;
+        final DataInputStream response;
+        private final Input input = new Input();
+        private final Output output = new Output();
+
+        private Stream(int id) {
+            this.id = id;
+            this.request = new DataOutputStream(new BufferedOutputStream(output, MAX_PAYLOAD));
+            this.response = new DataInputStream(new BufferedInputStream(input, MAX_PAYLOAD));
+        }
+
+        void abort(String reason) {
+            input.fail(reason);
+            output.fail(reason);
+        }
+
+        /** Libère le flux ; une réponse pas encore terminée est abandonnée côté serveur. */
+        @Override
+        public void close() {
+            if (streams.remove(id, this)) {
+                slots.release();
+                if (!input.isEnded() && !closed) {
+                    byte[] reason = "Flux fermé par le client".getBytes(StandardCharsets.UTF_8);
+                    try {
+                        sendFrame(id, RESET, reason, 0, reason.length);
+                    } catch (IOException e) {
+                        // connexion perdue : le serveur abandonne déjà le flux
+                    }
+                }
+                abort("Flux fermé");
+            }
+        }
+
+        private final class Input extends InputStream {
+            private final ArrayDeque<byte[]> frames = new ArrayDeque<>();
+            private byte[] current;
+            private int position;
+            private int consumed; // octets lus depuis le dernier WINDOW
+            private int window = STREAM_WINDOW; // crédit accordé au serveur
+            private long received;
+            private long limit = STREAM_WINDOW; // octets que le serveur peut envoyer, crédit rendu compris
+            private long previousLimit = STREAM_WINDOW; // même limite avant le dernier WINDOW
+            private boolean ended;
+            private String error;
+
+            synchronized void receive(byte[] data) {
+                received += data.length;
+                if (data.length > 0) {
+                    frames.add(data);
+                    notifyAll();
+                }
+            }
+
+            synchronized void end() {
+                ended = true;
+                notifyAll();
+            }
+
+            synchronized boolean isEnded() {
+                return ended;
+            }
+
+            /** Abandon : une réponse déjà terminée reste lisible. */
+            synchronized void fail(String reason) {
+                if (!ended) {
+                    error = reason;
+                    notifyAll();
+                }
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                while (true) {
+                    int count = 0;
+                    int granted = 0;
+                    synchronized (this) {
+                        if (current == null) {
+                            if (error != null) {
+                                throw new IOException(error);
+                            }
+                            current = frames.poll();
+                            position = 0;
+                        }
+                        if (current != null) {
+                            count = Math.min(len, current.length - position);
+                            System.arraycopy(current, position, b, off, count);
+                            position += count;
+                            if (position == current.length) {
+                                current = null;
+                            }
+                            consumed += count;
+                            if (consumed >= window / 2 && !ended) {
+                                granted = consumed;
+                                consumed = 0;
+                            }
+                        } else if (ended) {
+                            return -1;
+                        } else if (received >= previousLimit && window < MAX_STREAM_WINDOW) {
+                            // Plus rien à lire alors que le serveur a épuisé son crédit, hors le dernier WINDOW
+                            // encore en route : la fenêtre limite le débit. Un serveur lent n'y arrive jamais.
+                            int growth = Math.min(window, MAX_STREAM_WINDOW - window);
+                            window += growth;
+                            granted = consumed + growth;
+                            consumed = 0;
+                        } else {
+                            try {
+                                wait();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new InterruptedIOException("Lecture interrompue");
+                            }
+                            continue;
+                        }
+                    }
+                    if (granted > 0) {
+                        synchronized (this) {
+                            previousLimit = limit;
+                            limit += granted;
+                        }
+                        sendFrame(id, WINDOW, ByteBuffer.allocate(4).putInt(granted).array(), 0, 4);
+                    }
+                    if (count > 0) {
+                        return count;
+                    }
+                }
+            }
+        }
+
+        private final class Output extends OutputStream {
+            private long credit = STREAM_WINDOW;
+            private String error;
+
+            synchronized void grant(int bytes) {
+                credit += bytes;
+                notifyAll();
+            }
+
+            synchronized void fail(String reason) {
+                error = reason;
+                notifyAll();
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int count;
+                    synchronized (this) {
+                        while (credit == 0 && error == null) {
+                            try {
+                                wait();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new InterruptedIOException("Envoi interrompu");
+                            }
+                        }
+                        if (error != null) {
+                            throw new IOException(error);
+                        }
+                        count = (int) Math.min(Math.min(len, credit), MAX_PAYLOAD);
+                        credit -= count;
+                    }
+                    sendFrame(id, DATA, b, off, count);
+                    off += count;
+                    len -= count;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package serveur;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Protocole client v2 : après la poignée de main CONNECT_V2, une seule connexion porte des flux
+ * entrelacés, un par commande. Chaque trame : [numéro de flux int][type byte][longueur int][données].
+ *
+ * OPEN ouvre un flux (données : nom de la commande en UTF-8) ; DATA porte les octets de la requête ou
+ * de la réponse, au format du protocole v1 ; END termine un sens du flux ; RESET abandonne le flux
+ * (données : message) ; WINDOW rend du crédit à l'émetteur (données : int, octets consommés).
+ * Un émetteur n'a jamais plus d'une fenêtre d'octets non consommés sur un flux : un flux lent ne retient
+ * ni la lecture des trames ni les autres flux. La fenêtre part de {@link #STREAM_WINDOW} et double, jusqu'à
+ * {@link #MAX_STREAM_WINDOW}, quand la lecture attend les données alors que le client a déjà envoyé tout le
+ * crédit accordé avant le dernier WINDOW : elle suit ainsi le produit débit × aller-retour du lien, sans
+ * grandir pour un client simplement lent.
+ *
+ * Chaque flux est une requête du {@link RequestExecutor} du serveur, servie par les handlers du protocole v1
+ * à travers une {@link Connection} sans canal ; seuls les champs texte changent de codage (voir
+ * {@link Connection#readText()}). Un flux refusé par la limite d'admission est abandonné (RESET).
+ * Le lecteur de trames, lui, tourne hors de cette limite (voir {@link RequestExecutor#executeDetached}) :
+ * il ne fait qu'attendre des octets, et ne doit pas retenir une place dont ses propres flux ont besoin.
+ */
+final class MultiplexedSession {
+    static final int VERSION = 2;
+    static final byte OPEN = 1;
+    static final byte DATA = 2;
+    static final byte END = 3;
+    static final byte RESET = 4;
+    static final byte WINDOW = 5;
+    static final int MAX_PAYLOAD = 64 * 1024; // octets de données par trame
+    static final int STREAM_WINDOW = 1024 * 1024; // fenêtre initiale par flux et par sens
+    static final int MAX_STREAM_WINDOW = 16 * 1024 * 1024; // 1 Gbit/s sur 128 ms d'aller-retour
+    private static final int MAX_COMMAND = 256; // octets du nom d'une commande
+    private static final byte[] NO_DATA = new byte[0];
+
+    private static final AtomicInteger openSessions = new AtomicInteger();
+    private static final AtomicInteger openStreams = new AtomicInteger();
+
+    private final Connection connection;
+    private final int maxStreams;
+    private final ServerEngine.CommandHandler handler;
+    private final RequestExecutor executor;
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+
+    MultiplexedSession(Connection connection, int maxStreams, ServerEngine.CommandHandler handler,
+            RequestExecutor executor) {
+        this.connection = connection;
+        this.maxStreams = maxStreams;
+        this.handler = handler;
+        this.executor = executor;
+    }
+
+    static int openSessions() {
+        return openSessions.get();
+    }
+
+    static int openStreams() {
+        return openStreams.get();
+    }
+
+    /** Lit les trames jusqu'à la fermeture de la connexion ; les flux encore ouverts sont alors abandonnés. */
+    void run() throws IOException {
+        DataInputStream in = connection.in;
+        openSessions.incrementAndGet();
+        try {
+            while (true) {
+                int id;
+                try {
+                    id = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                byte type = in.readByte();
+                int length = in.readInt();
+                if (length < 0 || length > MAX_PAYLOAD) {
+                    throw new IOException("Trame invalide (" + length + " octets)");
+                }
+                byte[] payload = length == 0 ? NO_DATA : new byte[length];
+                in.readFully(payload);
+                dispatch(id, type, payload);
+            }
+        } finally {
+            openSessions.decrementAndGet();
+            for (Stream stream : streams.values()) {
+                stream.abort("Connexion fermée");
+            }
+            streams.clear();
+        }
+    }
+
+    /** Trame reçue ; celles d'un flux déjà terminé sont ignorées. */
+    private void dispatch(int id, byte type, byte[] payload) throws IOException {
+        Stream stream = streams.get(id);
+        switch (type) {
+            case OPEN:
+                open(id, payload);
+                break;
+            case DATA:
+                if (stream != null) {
+                    stream.input.receive(payload);
+                }
+                break;
+            case END:
+                if (stream != null) {
+                    stream.input.end();
+                }
+                break;
+            case RESET:
+                if (stream != null) {
+                    stream.abort(new String(payload, StandardCharsets.UTF_8));
+                }
+                break;
+            case WINDOW:
+                if (payload.length != 4) {
+                    throw new IOException("Trame WINDOW invalide");
+                }
+                if (stream != null) {
+                    stream.output.grant(ByteBuffer.wrap(payload).getInt());
+                }
+                break;
+            default:
+                throw new IOException("Type de trame inconnu: " + type);
+        }
+    }
+
+    private void open(int id, byte[] payload) throws IOException {
+        if (payload.length == 0 || payload.length > MAX_COMMAND || streams.containsKey(id)) {
+            sendReset(id, "Ouverture de flux invalide");
+            return;
+        }
+        if (streams.size() >= maxStreams) {
+            sendReset(id, "Trop de flux ouverts (" + maxStreams + ")");
+            return;
+        }
+        Stream stream = new Stream(id);
+        streams.put(id, stream);
+        String command = new String(payload, StandardCharsets.UTF_8);
+        if (!executor.tryExecute(() -> serve(stream, command))) {
+            streams.remove(id, stream);
+            sendReset(id, "Serveur saturé, réessayez plus tard");
+        }
+    }
+
+    /**
+     * Traite la commande d'un flux puis termine son sens de réponse. Si la requête n'a pas été lue
+     * jusqu'au bout, le flux est aussi abandonné pour que le client cesse d'envoyer. La place du flux est
+     * libérée avant END : le client peut ouvrir le suivant dès la réponse reçue.
+     */
+    private void serve(Stream stream, String command) {
+        Connection streamConnection = new Connection(stream.input, stream.output, connection.peer);
+        openStreams.incrementAndGet();
+        try {
+            handler.handle(streamConnection, command);
+            streamConnection.out.flush();
+            streams.remove(stream.id, stream);
+            sendFrame(stream.id, END, NO_DATA, 0, 0);
+            if (!stream.input.isEnded()) {
+                try {
+                    sendReset(stream.id, "Réponse terminée");
+                } catch (IOException e) {
+                    // client déjà parti avec sa réponse (connexion propre à un transfert, fermée après END)
+                }
+            }
+        } catch (Exception e) {
+            if (!stream.isAborted()) {
+                e.printStackTrace();
+                try {
+                    sendReset(stream.id, "Erreur du serveur");
+                } catch (IOException ex) {
+                    // connexion fermée : plus rien à signaler
+                }
+            }
+        } finally {
+            openStreams.decrementAndGet();
+            streams.remove(stream.id, stream);
+        }
+    }
+
+    private void sendReset(int id, String reason) throws IOException {
+        byte[] message = reason.getBytes(StandardCharsets.UTF_8);
+        sendFrame(id, RESET, message, 0, message.length);
+    }
+
+    /** Écrit une trame entière ; les flux se partagent la connexion trame par trame. */
+    private void sendFrame(int id, byte type, byte[] data, int offset, int length) throws IOException {
+        DataOutputStream out = connection.out;
+        synchronized (out) {
+            out.writeInt(id);
+            out.writeByte(type);
+            out.writeInt(length);
+            out.write(data, offset, length);
+            out.flush();
+        }
+    }
+
+    private final class Stream {
+        final int id;
+        final Input input = new Input();
+        final Output output = new Output();
+        private volatile boolean aborted;
+
+        Stream(int id) {
+            this.id = id;
+        }
+
+        boolean isAborted() {
+            return aborted;
+        }
+
+        void abort(String reason) {
+            aborted = true;
+            input.fail(reason);
+            output.fail(reason);
+        }
+
+        /** Octets reçus pour le flux ; le crédit est rendu au client au fur et à mesure de la lecture. */
+        private final class Input extends InputStream {
+            private final ArrayDeque<byte[]> frames = new ArrayDeque<>();
+            private byte[] current;
+            private int position;
+            private int outstanding; // octets reçus dont le crédit n'a pas encore été rendu
+            private int consumed; // octets lus depuis le dernier WINDOW
+            private int window = STREAM_WINDOW; // crédit accordé au client
+            private long received;
+            private long limit = STREAM_WINDOW; // octets que le client peut envoyer, crédit rendu compris
+            private long previousLimit = STREAM_WINDOW; // même limite avant le dernier WINDOW
+            private boolean ended;
+            private String error;
+
+            synchronized void receive(byte[] data) throws IOException {
+                outstanding += data.length;
+                received += data.length;
+                if (outstanding > window) {
+                    throw new IOException("Fenêtre du flux " + id + " dépassée");
+                }
+                if (data.length > 0) {
+                    frames.add(data);
+                    notifyAll();
+                }
+            }
+
+            synchronized void end() {
+                ended = true;
+                notifyAll();
+            }
+
+            synchronized boolean isEnded() {
+                return ended;
+            }
+
+            /** Abandon : la requête déjà terminée reste lisible. */
+            synchronized void fail(String reason) {
+                if (!ended) {
+                    error = reason;
+                    notifyAll();
+                }
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                while (true) {
+                    int count = 0;
+                    int granted = 0;
+                    synchronized (this) {
+                        if (current == null) {
+                            if (error != null) {
+                                throw new IOException("Flux " + id + " abandonné : " + error);
+                            }
+                            current = frames.poll();
+                            position = 0;
+                        }
+                        if (current != null) {
+                            count = Math.min(len, current.length - position);
+                            System.arraycopy(current, position, b, off, count);
+                            position += count;
+                            if (position == current.length) {
+                                current = null;
+                            }
+                            consumed += count;
+                            if (consumed >= window / 2 && !ended) {
+                                granted = consumed;
+                                outstanding -= consumed;
+                                consumed = 0;
+                            }
+                        } else if (ended) {
+                            return -1;
+                        } else if (received >= previousLimit && window < MAX_STREAM_WINDOW) {
+                            // Plus rien à lire alors que le client a épuisé son crédit, hors le dernier WINDOW
+                            // encore en route : la fenêtre limite le débit. Un client lent n'y arrive jamais.
+                            int growth = Math.min(window, MAX_STREAM_WINDOW - window);
+                            window += growth;
+                            granted = consumed + growth;
+                            outstanding -= consumed;
+                            consumed = 0;
+                        } else {
+                            try {
+                                wait();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new InterruptedIOException("Lecture du flux " + id + " interrompue");
+                            }
+                            continue;
+                        }
+                    }
+                    if (granted > 0) {
+                        synchronized (this) {
+                            previousLimit = limit;
+                            limit += granted;
+                        }
+                        sendFrame(id, WINDOW, ByteBuffer.allocate(4).putInt(granted).array(), 0, 4);
+                    }
+                    if (count > 0) {
+                        return count;
+                    }
+                }
+            }
+
+            @Override
+            public synchronized int available() {
+                if (current != null) {
+                    return current.length - position;
+                }
+                byte[] next = frames.peek();
+                return next != null ? next.length : 0;
+            }
+        }
+
+        /** Réponse du flux, découpée en trames DATA dans la limite du crédit accordé par le client. */
+        private final class Output extends OutputStream {
+            private long credit = STREAM_WINDOW;
+            private String error;
+
+            synchronized void grant(int bytes) {
+                credit += bytes;
+                notifyAll();
+            }
+
+            synchronized void fail(String reason) {
+                error = reason;
+                notifyAll();
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int count;
+                    synchronized (this) {
+                        while (credit == 0 && error == null) {
+                            try {
+                                wait();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new InterruptedIOException("Écriture du flux " + id + " interrompue");
+                            }
+                        }
+                        if (error != null) {
+                            throw new IOException("Flux " + id + " abandonné : " + error);
+                        }
+                        count = (int) Math.min(Math.min(len, credit), MAX_PAYLOAD);
+                        credit -= count;
+                    }
+                    sendFrame(id, DATA, b, off, count);
+                    off += count;
+                    len -= count;
+                }
+            }
+        }
+    }
+}
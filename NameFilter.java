@@ -0,0 +1,78 @@
+package serveur;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Filtre de noms des commandes LIST_PAGE : un préfixe simple, ou un motif glob (* et ?).
+ * Le préfixe littéral du motif borne le parcours de la liste triée ; seul le reste est
+ * comparé à l'expression régulière.
+ */
+final class NameFilter {
+    final String prefix;
+    private final Pattern pattern; // null : préfixe simple
+
+    private NameFilter(String prefix, Pattern pattern) {
+        this.prefix = prefix;
+        this.pattern = pattern;
+    }
+
+    static NameFilter parse(String expression) {
+        int wildcard = indexOfWildcard(expression);
+        if (wildcard < 0) {
+            return new NameFilter(expression, null);
+        }
+
+        StringBuilder regex = new StringBuilder();
+        for (char c : expression.toCharArray()) {
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return new NameFilter(expression.substring(0, wildcard), Pattern.compile(regex.toString()));
+    }
+
+    boolean matches(String name) {
+        return name.startsWith(prefix) && (pattern == null || pattern.matcher(name).matches());
+    }
+
+    /**
+     * Au plus limit noms correspondants, strictement après le jeton after (vide : depuis le début).
+     * Le parcours s'arrête au premier nom hors du préfixe.
+     */
+    List<String> page(NavigableSet<String> names, String after, int limit) {
+        NavigableSet<String> range = after.compareTo(prefix) >= 0
+                ? names.tailSet(after, false)
+                : names.tailSet(prefix, true);
+
+        List<String> page = new ArrayList<>();
+        for (String name : range) {
+            if (page.size() >= limit || !name.startsWith(prefix)) {
+                break;
+            }
+            if (pattern == null || pattern.matcher(name).matches()) {
+                page.add(name);
+            }
+        }
+        return page;
+    }
+
+    /** Jeton de la page suivante : le dernier nom d'une page pleine, vide sinon. */
+    static String nextToken(List<String> page, int limit) {
+        return page.size() >= limit ? page.get(page.size() - 1) : "";
+    }
+
+    private static int indexOfWildcard(String expression) {
+        for (int i = 0; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (c == '*' || c == '?') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
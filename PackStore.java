@@ -0,0 +1,230 @@
+package serveur;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Segments de groupage d'un slave : les petits fichiers sont ajoutés bout à bout dans des fichiers
+ * en ajout seul (répertoire {@link #DIRECTORY}), chaque fichier précédé d'un en-tête [nom][taille][CRC32C]
+ * qui rend les segments lisibles sans le catalogue. Des milliers de petits fichiers occupent ainsi
+ * quelques segments au lieu d'autant de fichiers de chunk.
+ *
+ * Un segment n'est confié qu'à un ajout à la fois : des ajouts simultanés écrivent dans des segments
+ * différents, sans verrou pendant la réception. Un segment plein n'est plus rouvert qu'en lecture ;
+ * ceux d'un démarrage précédent non plus.
+ *
+ * Les fichiers groupés supprimés ou remplacés sont notés dans un journal ({@link #RELEASED_FILE}) ; un
+ * segment fermé dont tous les fichiers sont libérés est supprimé. La place libérée dans un segment
+ * encore partiellement utilisé n'est pas récupérée.
+ */
+class PackStore {
+    static final String DIRECTORY = ".packs";
+    private static final String SEGMENT_PREFIX = "pack-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String RELEASED_FILE = "released.log"; // [segment int][position long][taille long]
+
+    static final class Segment {
+        final int id;
+        final FileChannel channel;
+        long size;
+
+        private Segment(int id, FileChannel channel) {
+            this.id = id;
+            this.channel = channel;
+        }
+    }
+
+    private final File directory;
+    private final long segmentSize;
+    private final AtomicInteger nextId;
+    private final Queue<Segment> writable = new ConcurrentLinkedQueue<>();
+    private final Set<Integer> open = ConcurrentHashMap.newKeySet(); // segments encore ouverts aux ajouts
+    private final Map<Integer, Map<Long, Long>> released = new HashMap<>(); // segment → position → taille
+    private final Map<Integer, Long> dataBytes = new HashMap<>(); // octets de fichiers par segment, à la demande
+    private DataOutputStream releasedJournal;
+
+    PackStore(File root, long segmentSize) throws IOException {
+        this.directory = new File(root, DIRECTORY);
+        this.segmentSize = segmentSize;
+        directory.mkdirs();
+
+        int last = 0;
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        last = Math.max(last, Integer.parseInt(
+                                name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // fichier étranger : ignoré
+                    }
+                }
+            }
+        }
+        this.nextId = new AtomicInteger(last + 1);
+        loadReleased();
+    }
+
+    /** Segment réservé à l'appelant jusqu'à {@link #release} : un segment entamé, ou un nouveau. */
+    Segment acquire() throws IOException {
+        Segment segment = writable.poll();
+        if (segment != null) {
+            return segment;
+        }
+        int id = nextId.getAndIncrement();
+        open.add(id);
+        return new Segment(id, FileChannel.open(file(id).toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE));
+    }
+
+    /** Rend un segment ; il reste ouvert aux ajouts suivants tant qu'il n'est pas plein. */
+    void release(Segment segment) throws IOException {
+        if (segment.size < segmentSize) {
+            writable.add(segment);
+        } else {
+            segment.channel.close();
+            open.remove(segment.id);
+            synchronized (this) {
+                collectIfFree(segment.id);
+            }
+        }
+    }
+
+    /**
+     * Libère un fichier groupé (segment, position de ses données, taille) ; une même position n'est
+     * comptée qu'une fois. Renvoie vrai si son segment, fermé et entièrement libéré, vient d'être supprimé.
+     */
+    synchronized boolean free(int segmentId, long offset, long length) throws IOException {
+        if (!file(segmentId).exists()) {
+            return false;
+        }
+        Map<Long, Long> files = released.computeIfAbsent(segmentId, id -> new HashMap<>());
+        if (files.putIfAbsent(offset, length) != null) {
+            return false;
+        }
+        releasedJournal.writeInt(segmentId);
+        releasedJournal.writeLong(offset);
+        releasedJournal.writeLong(length);
+        releasedJournal.flush();
+        return collectIfFree(segmentId);
+    }
+
+    /** Écrit l'en-tête d'un fichier à la fin du segment ; renvoie la position de ses données. */
+    static long appendHeader(Segment segment, String name, long length, int crc) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(name.length() + 16);
+        try (DataOutputStream header = new DataOutputStream(bytes)) {
+            header.writeUTF(name);
+            header.writeLong(length);
+            header.writeInt(crc);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            segment.channel.write(buffer, segment.size + buffer.position());
+        }
+        segment.size += buffer.limit();
+        return segment.size;
+    }
+
+    /** Annule les ajouts au-delà de size (lot refusé ou interrompu). */
+    static void truncate(Segment segment, long size) throws IOException {
+        segment.channel.truncate(size);
+        segment.size = size;
+    }
+
+    File file(int id) {
+        return new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+    }
+
+    /** Supprime un segment fermé dont tous les fichiers sont libérés. */
+    private boolean collectIfFree(int segmentId) throws IOException {
+        Map<Long, Long> files = released.get(segmentId);
+        if (files == null || open.contains(segmentId)) {
+            return false;
+        }
+        long freed = 0;
+        for (long length : files.values()) {
+            freed += length;
+        }
+        Long total = dataBytes.get(segmentId);
+        if (total == null) {
+            total = scanDataBytes(segmentId);
+            dataBytes.put(segmentId, total);
+        }
+        if (freed < total || !file(segmentId).delete()) {
+            return false;
+        }
+        released.remove(segmentId);
+        dataBytes.remove(segmentId);
+        return true;
+    }
+
+    /** Octets de fichiers d'un segment, par lecture de ses seuls en-têtes ; un en-tête tronqué clôt le parcours. */
+    private long scanDataBytes(int segmentId) throws IOException {
+        long total = 0;
+        try (RandomAccessFile segment = new RandomAccessFile(file(segmentId), "r")) {
+            long position = 0;
+            while (position < segment.length()) {
+                segment.seek(position);
+                try {
+                    segment.readUTF();
+                    long length = segment.readLong();
+                    segment.readInt();
+                    position = segment.getFilePointer() + length;
+                    total += length;
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        }
+        return total;
+    }
+
+    /** Relit le journal des libérations et le réécrit sans les segments déjà supprimés. */
+    private void loadReleased() throws IOException {
+        File journalFile = new File(directory, RELEASED_FILE);
+        if (journalFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+                while (true) {
+                    int segmentId = in.readInt();
+                    long offset = in.readLong();
+                    long length = in.readLong();
+                    released.computeIfAbsent(segmentId, id -> new HashMap<>()).put(offset, length);
+                }
+            } catch (EOFException e) {
+                // fin du journal, ou dernier enregistrement incomplet (arrêt brutal)
+            }
+        }
+        released.keySet().removeIf(segmentId -> !file(segmentId).exists());
+
+        File tempFile = new File(directory, RELEASED_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            for (Map.Entry<Integer, Map<Long, Long>> segment : released.entrySet()) {
+                for (Map.Entry<Long, Long> file : segment.getValue().entrySet()) {
+                    out.writeInt(segment.getKey());
+                    out.writeLong(file.getKey());
+                    out.writeLong(file.getValue());
+                }
+            }
+        }
+        Files.move(tempFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        releasedJournal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+
+        // Segments d'un démarrage précédent entièrement libérés avant l'arrêt
+        for (Integer segmentId : new ArrayList<>(released.keySet())) {
+            collectIfFree(segmentId);
+        }
+    }
+
+    /** Nombre de segments créés jusqu'ici (numérotés à partir de 1). */
+    int segmentCount() {
+        return nextId.get() - 1;
+    }
+}
@@ -0,0 +1,89 @@
+package serveur;
+
+import java.util.List;
+
+/**
+ * Choix du slave de chaque chunk et de chaque lot de petits fichiers : tourniquet pondéré lissé.
+ * À chaque choix, chaque slave candidat avance de son poids ; le plus avancé est retenu et recule de
+ * la somme des poids. Les slaves alternent ainsi au fil des chunks, d'un fichier à l'autre, chacun en
+ * proportion de son poids.
+ *
+ * Le poids d'un slave est son débit d'écriture sur disque déclaré (STATS) : un slave deux fois plus rapide
+ * reçoit deux fois plus de chunks, et les envois vers les slaves finissent ensemble au lieu d'attendre le
+ * plus lent. Sous minFreeSpace octets libres, le poids baisse avec l'espace
+ * restant. Un slave indisponible, ou sans la place du chunk, n'est pas candidat.
+ */
+class Placement {
+    private final List<FileServer.SlaveInfo> slaves;
+    private final long minFreeSpace;
+    private final double[] current;
+    private int fallback; // tourniquet simple quand aucun slave n'est candidat
+
+    Placement(List<FileServer.SlaveInfo> slaves, long minFreeSpace) {
+        this.slaves = slaves;
+        this.minFreeSpace = minFreeSpace;
+        this.current = new double[slaves.size()];
+    }
+
+    /**
+     * Slave qui recevra length octets. Si aucun n'est candidat, les slaves sont pris à tour de rôle
+     * et l'envoi échouera chunk par chunk.
+     */
+    synchronized int next(long length) {
+        double[] weights = weights(length);
+        double total = 0;
+        int chosen = -1;
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] <= 0) {
+                continue;
+            }
+            current[i] += weights[i];
+            total += weights[i];
+            if (chosen < 0 || current[i] > current[chosen]) {
+                chosen = i;
+            }
+        }
+        if (chosen < 0) {
+            return Math.floorMod(fallback++, slaves.size());
+        }
+        current[chosen] -= total;
+        slaves.get(chosen).plannedBytes.addAndGet(length);
+        return chosen;
+    }
+
+    /** Poids des slaves pour un envoi de length octets ; 0 pour ceux qui ne sont pas candidats. */
+    private double[] weights(long length) {
+        double[] weights = new double[slaves.size()];
+        double known = 0;
+        int measured = 0;
+        for (int i = 0; i < weights.length; i++) {
+            FileServer.SlaveInfo slave = slaves.get(i);
+            if (!slave.isConnected()) {
+                continue;
+            }
+            long free = slave.freeSpace < 0 ? -1 : slave.freeSpace - slave.plannedBytes.get();
+            if (slave.freeSpace >= 0 && free < length) {
+                continue;
+            }
+            double rate = slave.writeRate;
+            weights[i] = rate > 0 ? rate : -1; // -1 : candidat sans mesure
+            if (rate > 0) {
+                known += rate;
+                measured++;
+            }
+        }
+        // Un slave sans mesure reçoit le poids moyen des autres, en attendant ses premières écritures
+        double unknown = measured > 0 ? known / measured : 1;
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] < 0) {
+                weights[i] = unknown;
+            }
+            FileServer.SlaveInfo slave = slaves.get(i);
+            long free = slave.freeSpace - slave.plannedBytes.get();
+            if (weights[i] > 0 && slave.freeSpace >= 0 && free < minFreeSpace) {
+                weights[i] *= (double) free / minFreeSpace;
+            }
+        }
+        return weights;
+    }
+}
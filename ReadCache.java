@@ -0,0 +1,361 @@
+package serveur;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache de lecture du serveur principal : chunks entiers des fichiers les plus demandés, gardés hors
+ * du tas sous la clé nom + version + numéro de chunk. Une nouvelle version d'un fichier ne lit donc
+ * jamais les octets de l'ancienne ; {@link #invalidate} libère la place dès l'upload ou la suppression,
+ * par un index des chunks de chaque fichier.
+ *
+ * Admission : un chunk n'entre qu'à sa deuxième lecture récente, pour qu'un téléchargement isolé d'un
+ * gros fichier ne vide pas le cache. Éviction : LRU segmenté. Un chunk admis entre en probation, passe
+ * en zone protégée s'il est relu ; la zone protégée rend ses plus anciens chunks à la probation, d'où
+ * sortent les chunks évincés. Les lectures simultanées d'un même chunk absent attendent un seul
+ * chargement depuis le slave.
+ *
+ * Mémoire : les chunks sont rangés dans des tranches de {@link #SLICE_SIZE} octets d'un pool de tampons
+ * directs, alloué au fil des besoins jusqu'à la capacité puis réutilisé ; le cache n'occupe jamais plus
+ * que sa capacité hors du tas, chargements en cours compris. Un chunk évincé pendant qu'un lecteur le
+ * copie ne rend ses tranches qu'une fois la copie finie.
+ */
+class ReadCache {
+    private static final double PROTECTED_SHARE = 0.8; // part de la capacité réservée aux chunks relus
+    private static final int ADMISSION_HISTORY = 16384; // lectures récentes retenues pour l'admission
+    static final int SLICE_SIZE = 256 * 1024; // unité d'allocation des tampons directs
+
+    interface Loader {
+        /** Remplit le chunk avec ses octets lus sur le slave, jusqu'à {@link Chunk#remaining()} nul. */
+        void load(Chunk chunk) throws IOException;
+    }
+
+    /**
+     * Chunk rangé dans des tranches du pool. Le cache et chaque lecteur en tiennent une référence ;
+     * les tranches reviennent au pool à la dernière libération.
+     */
+    final class Chunk {
+        private final String name;
+        private final long length;
+        private final ByteBuffer[] slices;
+        private final AtomicInteger references = new AtomicInteger(1); // celle du premier lecteur
+        private long filled;
+
+        private Chunk(String name, long length, ByteBuffer[] slices) {
+            this.name = name;
+            this.length = length;
+            this.slices = slices;
+        }
+
+        long remaining() {
+            return length - filled;
+        }
+
+        /** Ajoute des octets à la suite du chunk (chargement). */
+        void put(byte[] data, int offset, int count) {
+            while (count > 0) {
+                int slice = (int) (filled / SLICE_SIZE);
+                int position = (int) (filled % SLICE_SIZE);
+                int n = Math.min(count, SLICE_SIZE - position);
+                slices[slice].put(position, data, offset, n);
+                filled += n;
+                offset += n;
+                count -= n;
+            }
+        }
+
+        /** Copie le chunk entier dans out, par buffer. */
+        void writeTo(OutputStream out, byte[] buffer) throws IOException {
+            long written = 0;
+            while (written < length) {
+                int position = (int) (written % SLICE_SIZE);
+                int n = (int) Math.min(Math.min(buffer.length, SLICE_SIZE - position), length - written);
+                slices[(int) (written / SLICE_SIZE)].get(position, buffer, 0, n);
+                out.write(buffer, 0, n);
+                written += n;
+            }
+        }
+
+        /** Prend une référence ; false si le chunk a déjà rendu ses tranches. */
+        boolean retain() {
+            int count;
+            do {
+                count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+            } while (!references.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                recycle(slices);
+            }
+        }
+
+        /** Vrai si seul le cache tient le chunk : l'évincer rend ses tranches au pool. */
+        private boolean isUnpinned() {
+            return references.get() == 1;
+        }
+    }
+
+    private final long capacity;
+    private final long protectedCapacity;
+    private final long maxSlices;
+    private final Executor executor;
+    private final LinkedHashMap<String, Chunk> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Chunk> protectedChunks = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Set<String>> keysByName = new HashMap<>(); // chunks en cache de chaque fichier
+    private final LinkedHashMap<String, Boolean> recentReads = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > ADMISSION_HISTORY;
+        }
+    };
+    private final ConcurrentHashMap<String, CompletableFuture<Chunk>> loading = new ConcurrentHashMap<>();
+    private final ArrayDeque<ByteBuffer> freeSlices = new ArrayDeque<>();
+    private long allocatedSlices;
+    private long probationBytes;
+    private long protectedBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong(); // lectures servies par un chargement déjà en cours
+    private final AtomicLong evictions = new AtomicLong();
+
+    ReadCache(long capacity, Executor executor) {
+        this.capacity = capacity;
+        this.protectedCapacity = (long) (capacity * PROTECTED_SHARE);
+        this.maxSlices = Math.max(1, capacity / SLICE_SIZE);
+        this.executor = executor;
+    }
+
+    /**
+     * Chunk en cache, ou en cours de chargement ; s'il est absent mais admis, loader est lancé une seule
+     * fois pour tous les lecteurs. Renvoie null si le chunk n'est pas admis, ou si le pool n'a pas de
+     * place : l'appelant le lit lui-même sur le slave. Chaque lecteur reçoit une référence, à rendre par
+     * {@link Chunk#release()} ; un chargement échoué fait échouer le futur, et le lecteur se rabat sur le slave.
+     */
+    CompletableFuture<Chunk> get(String name, long version, int chunkIndex, long length, Loader loader) {
+        String key = key(name, version, chunkIndex);
+        synchronized (this) {
+            Chunk cached = lookup(key);
+            if (cached != null) {
+                cached.retain(); // tenu par le cache : ne peut pas être libéré
+                hits.incrementAndGet();
+                return CompletableFuture.completedFuture(cached);
+            }
+            if (length > capacity - protectedCapacity || !admit(key)) {
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+
+        CompletableFuture<Chunk> created = new CompletableFuture<>();
+        CompletableFuture<Chunk> existing = loading.putIfAbsent(key, created);
+        if (existing != null) {
+            shared.incrementAndGet();
+            return existing.thenApply(ReadCache::retained);
+        }
+        misses.incrementAndGet();
+        ByteBuffer[] slices;
+        synchronized (this) {
+            slices = takeSlices((int) ((length + SLICE_SIZE - 1) / SLICE_SIZE));
+        }
+        if (slices == null) {
+            loading.remove(key, created);
+            created.completeExceptionally(new IOException("Cache de lecture plein (tranches en cours de lecture)"));
+            return null;
+        }
+        Chunk chunk = new Chunk(name, length, slices);
+        Runnable load = () -> {
+            try {
+                loader.load(chunk);
+                // Pas d'entrée si le fichier a été remplacé ou supprimé pendant le chargement
+                if (loading.remove(key, created)) {
+                    store(key, chunk);
+                }
+                created.complete(chunk);
+            } catch (Throwable e) {
+                loading.remove(key, created);
+                chunk.release();
+                created.completeExceptionally(e);
+            }
+        };
+        try {
+            executor.execute(load);
+        } catch (RejectedExecutionException e) {
+            load.run(); // pool saturé : chargement par le lecteur lui-même
+        }
+        return created;
+    }
+
+    /** Retire tous les chunks d'un fichier, toutes versions confondues. */
+    void invalidate(String name) {
+        String prefix = name + '\0';
+        loading.keySet().removeIf(key -> key.startsWith(prefix)); // chargements en cours seulement
+        synchronized (this) {
+            Set<String> keys = keysByName.remove(name);
+            if (keys == null) {
+                return;
+            }
+            for (String key : keys) {
+                Chunk chunk = probation.remove(key);
+                if (chunk != null) {
+                    probationBytes -= chunk.length;
+                } else {
+                    chunk = protectedChunks.remove(key);
+                    protectedBytes -= chunk.length;
+                }
+                chunk.release();
+            }
+        }
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    long shared() {
+        return shared.get();
+    }
+
+    long evictions() {
+        return evictions.get();
+    }
+
+    synchronized long bytes() {
+        return probationBytes + protectedBytes;
+    }
+
+    private static Chunk retained(Chunk chunk) {
+        if (!chunk.retain()) {
+            throw new CompletionException(new IOException("Chunk évincé avant sa lecture"));
+        }
+        return chunk;
+    }
+
+    /** Chunk en cache ; une relecture en probation le fait passer en zone protégée. */
+    private Chunk lookup(String key) {
+        Chunk chunk = protectedChunks.get(key);
+        if (chunk != null) {
+            return chunk;
+        }
+        chunk = probation.remove(key);
+        if (chunk == null) {
+            return null;
+        }
+        probationBytes -= chunk.length;
+        protectedChunks.put(key, chunk);
+        protectedBytes += chunk.length;
+        while (protectedBytes > protectedCapacity) {
+            Map.Entry<String, Chunk> eldest = removeEldest(protectedChunks);
+            protectedBytes -= eldest.getValue().length;
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += eldest.getValue().length;
+        }
+        evict(capacity);
+        return chunk;
+    }
+
+    /** Vrai si le chunk a déjà été lu récemment (deuxième lecture) ; sinon la lecture est retenue. */
+    private boolean admit(String key) {
+        if (recentReads.remove(key) != null) {
+            return true;
+        }
+        recentReads.put(key, Boolean.TRUE);
+        return false;
+    }
+
+    private synchronized void store(String key, Chunk chunk) {
+        if (probation.containsKey(key) || protectedChunks.containsKey(key)) {
+            return; // chargé en même temps par un autre lecteur, après notre recherche
+        }
+        chunk.retain(); // référence du cache
+        probation.put(key, chunk);
+        probationBytes += chunk.length;
+        keysByName.computeIfAbsent(chunk.name, name -> new HashSet<>()).add(key);
+        evict(capacity);
+    }
+
+    /** Évince les plus anciens chunks jusqu'à ne pas dépasser limit octets en cache. */
+    private void evict(long limit) {
+        while (probationBytes + protectedBytes > limit) {
+            LinkedHashMap<String, Chunk> segment = probation.isEmpty() ? protectedChunks : probation;
+            Map.Entry<String, Chunk> eldest = removeEldest(segment);
+            Chunk evicted = eldest.getValue();
+            if (segment == probation) {
+                probationBytes -= evicted.length;
+            } else {
+                protectedBytes -= evicted.length;
+            }
+            Set<String> keys = keysByName.get(evicted.name);
+            keys.remove(eldest.getKey());
+            if (keys.isEmpty()) {
+                keysByName.remove(evicted.name);
+            }
+            evicted.release();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * count tranches du pool, en évinçant des chunks s'il le faut ; null, sans rien évincer, si les
+     * tranches manquantes sont encore retenues par des lecteurs.
+     */
+    private ByteBuffer[] takeSlices(int count) {
+        long available = freeSlices.size() + (maxSlices - allocatedSlices);
+        if (available < count) {
+            for (Chunk chunk : probation.values()) {
+                available += chunk.isUnpinned() ? chunk.slices.length : 0;
+            }
+            for (Chunk chunk : protectedChunks.values()) {
+                available += chunk.isUnpinned() ? chunk.slices.length : 0;
+            }
+            if (available < count) {
+                return null; // évincer viderait le cache sans libérer assez de tranches
+            }
+        }
+        while (freeSlices.size() + (maxSlices - allocatedSlices) < count && bytes() > 0) {
+            evict(bytes() - 1); // le plus ancien chunk
+        }
+        if (freeSlices.size() + (maxSlices - allocatedSlices) < count) {
+            return null;
+        }
+        ByteBuffer[] slices = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            ByteBuffer slice = freeSlices.poll();
+            if (slice == null) {
+                slice = ByteBuffer.allocateDirect(SLICE_SIZE);
+                allocatedSlices++;
+            }
+            slices[i] = slice;
+        }
+        return slices;
+    }
+
+    private synchronized void recycle(ByteBuffer[] slices) {
+        Collections.addAll(freeSlices, slices);
+    }
+
+    private static Map.Entry<String, Chunk> removeEldest(LinkedHashMap<String, Chunk> segment) {
+        Iterator<Map.Entry<String, Chunk>> eldest = segment.entrySet().iterator();
+        Map.Entry<String, Chunk> entry = eldest.next();
+        eldest.remove();
+        return entry;
+    }
+
+    private static String key(String name, long version, int chunkIndex) {
+        return name + '\0' + version + '\0' + chunkIndex;
+    }
+}
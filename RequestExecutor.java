@@ -0,0 +1,148 @@
+package serveur;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exécution bornée des requêtes acceptées par les serveurs.
+ * Au plus maxConcurrent requêtes s'exécutent en même temps et au plus maxQueued attendent ;
+ * au-delà, {@link #execute(Runnable)} bloque la boucle d'acceptation (contre-pression). Un thread qui ne
+ * doit jamais bloquer (boucle d'événements, lecteur de trames) passe par {@link #tryExecute(Runnable)}
+ * ou {@link #tryReserve()}. Une tâche de longue durée qui ne fait qu'attendre des octets et soumet le travail
+ * ici (lecteur d'une connexion v2) passe par {@link #executeDetached(Runnable)}, hors des deux limites.
+ */
+class RequestExecutor {
+    enum Model {
+        VIRTUAL, PLATFORM
+    }
+
+    private final ExecutorService delegate;
+    private final ExecutorService detached;
+    private final Semaphore admission;
+    private final Semaphore running;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Model model;
+
+    RequestExecutor(String name, Model requested, int maxConcurrent, int maxQueued) {
+        ExecutorService virtual = requested == Model.VIRTUAL ? newVirtualExecutor() : null;
+        if (virtual != null) {
+            this.delegate = virtual;
+            this.model = Model.VIRTUAL;
+        } else {
+            if (requested == Model.VIRTUAL) {
+                System.out.println("Threads virtuels indisponibles (Java 21 requis), pool de threads utilisé");
+            }
+            AtomicInteger counter = new AtomicInteger();
+            this.delegate = Executors.newFixedThreadPool(maxConcurrent,
+                    r -> new Thread(r, name + "-" + counter.incrementAndGet()));
+            this.model = Model.PLATFORM;
+        }
+        if (model == Model.VIRTUAL) {
+            this.detached = delegate;
+        } else {
+            AtomicInteger counter = new AtomicInteger();
+            this.detached = Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, name + "-lecteur-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.admission = new Semaphore(maxConcurrent + maxQueued);
+        this.running = new Semaphore(maxConcurrent);
+    }
+
+    static RequestExecutor fromConfig(String name, Properties prop) {
+        Model model = Model.valueOf(prop.getProperty("EXECUTION_MODEL", "VIRTUAL").trim().toUpperCase());
+        int maxConcurrent = Integer.parseInt(prop.getProperty("MAX_CONCURRENT_REQUESTS", "256"));
+        int maxQueued = Integer.parseInt(prop.getProperty("MAX_QUEUED_REQUESTS", "1024"));
+        return new RequestExecutor(name, model, maxConcurrent, maxQueued);
+    }
+
+    /** Soumet une requête, en bloquant tant que la limite d'admission est atteinte. */
+    void execute(Runnable task) throws InterruptedException {
+        admission.acquire();
+        executeReserved(task);
+    }
+
+    /** Soumet une requête sans attendre ; renvoie false si la limite d'admission est atteinte. */
+    boolean tryExecute(Runnable task) {
+        if (!tryReserve()) {
+            return false;
+        }
+        executeReserved(task);
+        return true;
+    }
+
+    /**
+     * Réserve une place d'admission sans attendre, pour préparer la requête avant de la soumettre ;
+     * à suivre de {@link #executeReserved(Runnable)} ou de {@link #cancelReservation()}.
+     */
+    boolean tryReserve() {
+        return admission.tryAcquire();
+    }
+
+    void cancelReservation() {
+        admission.release();
+    }
+
+    /** Soumet une requête dont la place d'admission est déjà réservée. */
+    void executeReserved(Runnable task) {
+        queued.incrementAndGet();
+        try {
+            delegate.execute(() -> run(task));
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            admission.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Lance une tâche sans place d'admission ni d'exécution, sur son propre thread. Réservé aux tâches qui
+     * soumettent leur travail à cet exécuteur : occupant une place, elles pourraient retenir celles dont ce
+     * travail a besoin.
+     */
+    void executeDetached(Runnable task) {
+        detached.execute(task);
+    }
+
+    private void run(Runnable task) {
+        try {
+            running.acquireUninterruptibly();
+            queued.decrementAndGet();
+            active.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                active.decrementAndGet();
+                running.release();
+            }
+        } finally {
+            admission.release();
+        }
+    }
+
+    Model model() {
+        return model;
+    }
+
+    int activeHandlers() {
+        return active.get();
+    }
+
+    int queuedRequests() {
+        return queued.get();
+    }
+
+    private static ExecutorService newVirtualExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
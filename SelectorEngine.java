@@ -0,0 +1,188 @@
+package serveur;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Moteur non bloquant : quelques boucles d'événements surveillent toutes les connexions en attente
+ * de commande et décodent leurs en-têtes au fil de l'arrivée des octets. Une connexion n'occupe
+ * un thread de traitement que pendant l'exécution d'une commande complète, puis revient à sa boucle.
+ * Une boucle ne bloque jamais : quand la limite d'admission est atteinte, la commande décodée attend
+ * dans la boucle (sans lecture) et sa soumission est retentée.
+ */
+class SelectorEngine implements ServerEngine {
+    private static final long ADMISSION_RETRY_MILLIS = 10;
+
+    private final RequestExecutor executor;
+    private final Map<String, String> headers;
+    private final EventLoop[] loops;
+
+    SelectorEngine(RequestExecutor executor, Map<String, String> headers, int loopCount) {
+        this.executor = executor;
+        this.headers = headers;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+    }
+
+    @Override
+    public void serve(int port, CommandHandler handler) throws IOException, InterruptedException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(handler);
+            new Thread(loops[i], "selector-" + (i + 1)).start();
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            int next = 0;
+            while (true) {
+                SocketChannel channel = server.accept();
+                System.out.println("\nNouveau client connecté : " + channel.socket().getInetAddress());
+                channel.configureBlocking(false);
+                loops[next].register(channel, new CommandDecoder(headers, new byte[0]));
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final CommandHandler handler;
+        private final Queue<Object[]> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<SelectionKey> deferred = new ArrayDeque<>(); // commandes en attente d'admission
+
+        EventLoop(CommandHandler handler) throws IOException {
+            this.selector = Selector.open();
+            this.handler = handler;
+        }
+
+        void register(SocketChannel channel, CommandDecoder decoder) {
+            pending.add(new Object[] { channel, decoder });
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(deferred.isEmpty() ? 0 : ADMISSION_RETRY_MILLIS);
+                    registerPending();
+                    retryDeferred();
+
+                    // Copie : dispatch() appelle selectNow(), qui modifie l'ensemble sélectionné
+                    List<SelectionKey> ready = new ArrayList<>(selector.selectedKeys());
+                    selector.selectedKeys().clear();
+                    for (SelectionKey key : ready) {
+                        if (key.isValid() && key.isReadable()) {
+                            onReadable(key);
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void registerPending() {
+            Object[] entry;
+            while ((entry = pending.poll()) != null) {
+                SocketChannel channel = (SocketChannel) entry[0];
+                CommandDecoder decoder = (CommandDecoder) entry[1];
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ, decoder);
+                    // Une commande suivante déjà reçue en entier n'attend pas de nouvel événement
+                    if (decoder.isComplete()) {
+                        submit(key);
+                    }
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            }
+        }
+
+        private void onReadable(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            CommandDecoder decoder = (CommandDecoder) key.attachment();
+            try {
+                if (!decoder.readFrom(channel)) {
+                    key.cancel();
+                    channel.close();
+                    return;
+                }
+                if (decoder.isComplete()) {
+                    submit(key);
+                }
+            } catch (IOException e) {
+                key.cancel();
+                closeQuietly(channel);
+            }
+        }
+
+        /** Commande décodée : soumise, ou mise en attente derrière celles qui attendent déjà l'admission. */
+        private void submit(SelectionKey key) {
+            if (!deferred.isEmpty() || !dispatch(key)) {
+                key.interestOps(0); // complète : rien à lire avant sa soumission
+                deferred.add(key);
+            }
+        }
+
+        /** Soumet de nouveau, dans l'ordre, les commandes en attente d'admission. */
+        private void retryDeferred() {
+            while (!deferred.isEmpty()) {
+                SelectionKey key = deferred.peek();
+                if (key.isValid() && !dispatch(key)) {
+                    return; // toujours plein : les suivantes attendent aussi
+                }
+                deferred.poll();
+            }
+        }
+
+        /**
+         * Sort la connexion du sélecteur et confie la commande décodée à un thread de traitement ;
+         * renvoie false, sans rien changer, si la limite d'admission est atteinte.
+         */
+        private boolean dispatch(SelectionKey key) {
+            if (!executor.tryReserve()) {
+                return false;
+            }
+            SocketChannel channel = (SocketChannel) key.channel();
+            CommandDecoder decoder = (CommandDecoder) key.attachment();
+            Connection connection;
+            try {
+                key.cancel();
+                selector.selectNow();
+                channel.configureBlocking(true);
+                connection = new Connection(channel, decoder.remaining());
+            } catch (IOException e) {
+                executor.cancelReservation();
+                closeQuietly(channel);
+                return true;
+            }
+
+            String command = decoder.command();
+            executor.executeReserved(() -> {
+                if (!ServerEngine.runCommand(connection, command, handler)) {
+                    connection.close();
+                    return;
+                }
+                try {
+                    byte[] rest = connection.unreadBytes();
+                    channel.configureBlocking(false);
+                    register(channel, new CommandDecoder(headers, rest));
+                } catch (IOException e) {
+                    connection.close();
+                }
+            });
+            return true;
+        }
+
+        private void closeQuietly(Channel channel) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // rien à faire
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package serveur;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Moteur réseau d'un serveur : accepte les connexions et leur applique le traitement des commandes.
+ * Deux implémentations, choisies par SERVER_ENGINE dans config.txt : BLOCKING (un thread par
+ * connexion) et SELECTOR (boucles d'événements java.nio, un thread seulement pendant une commande).
+ */
+interface ServerEngine {
+    interface CommandHandler {
+        /** Traite une commande ; renvoie true si la connexion peut recevoir la commande suivante. */
+        boolean handle(Connection connection, String command) throws Exception;
+    }
+
+    void serve(int port, CommandHandler handler) throws IOException, InterruptedException;
+
+    /**
+     * @param headers champs d'en-tête de chaque commande ('U' texte, 'I' int, 'L' long, 'Z' booléen),
+     *                utilisés par le moteur SELECTOR pour attendre un en-tête complet sans bloquer
+     */
+    static ServerEngine fromConfig(Properties prop, RequestExecutor executor, Map<String, String> headers) {
+        String engine = prop.getProperty("SERVER_ENGINE", "BLOCKING").trim().toUpperCase();
+        switch (engine) {
+            case "SELECTOR":
+                int loops = Integer.parseInt(prop.getProperty("SELECTOR_THREADS", "2"));
+                return new SelectorEngine(executor, headers, loops);
+            case "BLOCKING":
+                return new BlockingEngine(executor);
+            default:
+                throw new IllegalArgumentException("SERVER_ENGINE inconnu: " + engine);
+        }
+    }
+
+    /** Exécute une commande puis envoie la réponse ; ferme la connexion en cas d'erreur. */
+    static boolean runCommand(Connection connection, String command, CommandHandler handler) {
+        try {
+            boolean keepAlive = handler.handle(connection, command);
+            connection.out.flush();
+            return keepAlive;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package serveur;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Connexions persistantes du serveur principal vers un slave.
+ * Une connexion n'est remise dans le pool que si l'échange s'est terminé proprement
+ * (appel à {@link Connection#done()}) ; sinon elle est fermée, car le flux peut être désaligné.
+ *
+ * Le pool suit aussi l'état du slave : disponible ou non, latence (PING) et débit des échanges en
+ * moyennes mobiles exponentielles. Un slave indisponible fait échouer {@link #acquire()} tout de suite,
+ * sans attendre les délais TCP ; seul {@link #heartbeat()} le sonde, et le rend disponible dès qu'il répond.
+ * Il n'est déclaré indisponible qu'après HEARTBEAT_FAILURES échecs de suite, sondes ou connexions.
+ *
+ * Le maximum de connexions par slave est strict : au-delà, {@link #acquire()} attend une connexion libre
+ * pendant le délai configuré, puis échoue. Seule la sonde peut ouvrir une connexion hors du pool (une à la
+ * fois, fermée après le PING), pour qu'un slave occupé par de longs transferts ne passe pas pour tombé.
+ *
+ * Une lecture en avance garde sa connexion tant que sa fenêtre est pleine, c'est-à-dire jusqu'à ce que son
+ * client l'atteigne. Si ces lectures retiennent toutes les places, la partie qu'un client attend ne doit pas
+ * attendre derrière elles : {@link #acquireUrgent()} lui donne l'une des {@link #RESERVED_CONNECTIONS}
+ * places réservées au-delà du maximum. Leurs détenteurs ne retiennent jamais leur connexion en attendant
+ * un client : ces places se libèrent toujours.
+ */
+class SlavePool {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long VALIDATE_AFTER = 2000; // une connexion inactive plus longtemps est testée (PING)
+    private static final int PING_TIMEOUT = 2000;
+    private static final int HEARTBEAT_FAILURES = 2; // échecs de suite avant de déclarer le slave indisponible
+    private static final double EWMA_WEIGHT = 0.2; // poids de la dernière mesure
+    private static final long THROUGHPUT_MIN_BYTES = 256 * 1024; // échanges plus petits : dominés par la latence
+    static final int RESERVED_CONNECTIONS = 4; // places au-delà du maximum, pour les parties attendues par un client
+
+    class Connection implements Closeable {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        private long lastUsed;
+        private boolean reusable;
+        private Semaphore permit; // place du pool occupée, null hors du pool
+
+        private final CountingInput received;
+        private final CountingOutput sent;
+        private long exchangeStart; // début de l'emprunt en cours (nanosecondes)
+        private long exchangeBytes; // octets échangés avant l'emprunt en cours
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true); // chaque échange est vidé explicitement : pas d'attente de Nagle
+            socket.setSoTimeout(readTimeout);
+            this.received = new CountingInput(socket.getInputStream());
+            this.sent = new CountingOutput(socket.getOutputStream());
+            this.in = new DataInputStream(new BufferedInputStream(received, BUFFER_SIZE));
+            this.out = new DataOutputStream(new BufferedOutputStream(sent, BUFFER_SIZE));
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        /** Marque l'échange comme complet : la connexion peut être réutilisée. Le débit de l'échange est relevé. */
+        void done() {
+            reusable = true;
+            long bytes = received.count + sent.count - exchangeBytes;
+            if (bytes >= THROUGHPUT_MIN_BYTES) {
+                recordThroughput(bytes, System.nanoTime() - exchangeStart);
+            }
+        }
+
+        private void begin() {
+            exchangeStart = System.nanoTime();
+            exchangeBytes = received.count + sent.count;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+
+        private void destroy() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // rien à faire
+            }
+        }
+    }
+
+    private final String ip;
+    private final int port;
+    private final long idleTimeout;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final long acquireTimeout;
+    private final Semaphore permits;
+    private final Semaphore reserved = new Semaphore(RESERVED_CONNECTIONS);
+    private final Deque<Connection> idle = new ArrayDeque<>();
+
+    private volatile boolean up; // faux jusqu'à la première sonde réussie
+    private int failures; // sondes ou connexions échouées de suite
+    private double latencyMicros = -1; // moyenne mobile du PING, -1 : pas encore mesurée
+    private double throughput = -1; // moyenne mobile du débit des échanges (octets/s), -1 : pas encore mesuré
+
+    SlavePool(String ip, int port, int maxConnections, long idleTimeout, int connectTimeout, int readTimeout,
+            long acquireTimeout) {
+        this.ip = ip;
+        this.port = port;
+        this.idleTimeout = idleTimeout;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.acquireTimeout = acquireTimeout;
+        this.permits = new Semaphore(maxConnections);
+    }
+
+    boolean isUp() {
+        return up;
+    }
+
+    synchronized long latencyMicros() {
+        return Math.round(latencyMicros);
+    }
+
+    synchronized long throughput() {
+        return Math.round(throughput);
+    }
+
+    /**
+     * Sonde le slave par PING, sur une connexion libre du pool s'il est disponible, sur une nouvelle sinon.
+     * Met à jour la latence et l'état ; renvoie vrai si le slave vient de devenir disponible.
+     */
+    boolean heartbeat() {
+        boolean wasUp = up;
+        try (Connection connection = probeConnection(wasUp)) {
+            connection.socket.setSoTimeout(PING_TIMEOUT);
+            long start = System.nanoTime();
+            connection.out.writeUTF("PING");
+            connection.out.flush();
+            if (!"PONG".equals(connection.in.readUTF())) {
+                throw new IOException("Réponse inattendue au PING");
+            }
+            recordLatency(System.nanoTime() - start);
+            connection.socket.setSoTimeout(readTimeout);
+            connection.done();
+        } catch (IOException e) {
+            recordFailure(e.getMessage());
+            return false;
+        }
+        synchronized (this) {
+            failures = 0;
+        }
+        if (!wasUp) {
+            up = true;
+            System.out.println("Slave " + ip + ":" + port + " disponible");
+            return true;
+        }
+        return false;
+    }
+
+    /** Connexion de la sonde : une connexion libre du pool, sinon une connexion à part, fermée après usage. */
+    private Connection probeConnection(boolean pooled) throws IOException {
+        Connection connection = pooled ? take(permits, 0) : null;
+        return connection != null ? connection : new Connection(connect());
+    }
+
+    /** Échec d'une sonde ou d'une connexion : indisponible après HEARTBEAT_FAILURES échecs de suite. */
+    private void recordFailure(String reason) {
+        synchronized (this) {
+            failures++;
+            if (failures < HEARTBEAT_FAILURES) {
+                return;
+            }
+        }
+        markDown(reason);
+    }
+
+    /** Déclare le slave indisponible ; ses connexions inactives sont fermées. */
+    void markDown(String reason) {
+        if (up) {
+            up = false;
+            System.out.println("Slave " + ip + ":" + port + " indisponible : " + reason);
+        }
+        List<Connection> stale;
+        synchronized (idle) {
+            stale = new ArrayList<>(idle);
+            idle.clear();
+        }
+        for (Connection connection : stale) {
+            connection.destroy();
+        }
+    }
+
+    /**
+     * Emprunte une connexion : une connexion inactive valide si possible, sinon une nouvelle.
+     * Au-delà du maximum par slave, attend qu'une connexion se libère, et échoue passé le délai configuré.
+     */
+    Connection acquire() throws IOException {
+        return acquire(false);
+    }
+
+    /**
+     * Emprunte une connexion pour une lecture qui ne la retient jamais en attendant un client (partie qu'un
+     * client attend déjà, chargement du cache) : une place libre du pool s'il y en a, sinon l'une des places
+     * réservées. N'attend jamais derrière les lectures en avance.
+     */
+    Connection acquireUrgent() throws IOException {
+        return acquire(true);
+    }
+
+    private Connection acquire(boolean urgent) throws IOException {
+        if (!up) {
+            throw new IOException("Slave " + ip + ":" + port + " indisponible");
+        }
+        Connection connection;
+        try {
+            connection = urgent ? take(permits, 0) : null;
+            if (connection == null) {
+                connection = take(urgent ? reserved : permits, acquireTimeout);
+            }
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            recordFailure(e.getMessage()); // connexion refusée ou sans réponse
+            throw e;
+        }
+        if (connection == null) {
+            throw new IOException("Aucune connexion libre vers le slave " + ip + ":" + port + " après "
+                    + acquireTimeout + " ms");
+        }
+        return connection;
+    }
+
+    /** Emprunte une connexion en attendant au plus timeoutMillis une place de slots ; null sinon. */
+    private Connection take(Semaphore slots, long timeoutMillis) throws IOException {
+        try {
+            if (!slots.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Attente d'une connexion interrompue");
+        }
+
+        try {
+            Connection connection;
+            while ((connection = pollIdle()) != null) {
+                if (isUsable(connection)) {
+                    connection.permit = slots;
+                    connection.begin();
+                    return connection;
+                }
+                connection.destroy();
+            }
+
+            connection = new Connection(connect());
+            connection.permit = slots;
+            connection.begin();
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            slots.release();
+            throw e;
+        }
+    }
+
+    /** Ferme les connexions inactives depuis plus que le délai configuré. */
+    void evictIdle() {
+        long limit = System.currentTimeMillis() - idleTimeout;
+        List<Connection> expired = new ArrayList<>();
+        synchronized (idle) {
+            Iterator<Connection> it = idle.iterator();
+            while (it.hasNext()) {
+                Connection connection = it.next();
+                if (connection.lastUsed < limit) {
+                    it.remove();
+                    expired.add(connection);
+                }
+            }
+        }
+        for (Connection connection : expired) {
+            connection.destroy();
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(ip, port), connectTimeout);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private synchronized void recordLatency(long nanos) {
+        double micros = nanos / 1000.0;
+        latencyMicros = latencyMicros < 0 ? micros : latencyMicros + EWMA_WEIGHT * (micros - latencyMicros);
+    }
+
+    private synchronized void recordThroughput(long bytes, long nanos) {
+        double rate = bytes * 1e9 / Math.max(1, nanos);
+        throughput = throughput < 0 ? rate : throughput + EWMA_WEIGHT * (rate - throughput);
+    }
+
+    private Connection pollIdle() {
+        synchronized (idle) {
+            return idle.pollFirst();
+        }
+    }
+
+    private void release(Connection connection) {
+        // Place rendue après la remise en pool, mais lue avant : un autre emprunteur peut déjà l'avoir reprise
+        Semaphore permit = connection.permit;
+        connection.permit = null;
+        boolean keep = connection.reusable && permit != null && !connection.socket.isClosed();
+        connection.reusable = false;
+        if (keep) {
+            connection.lastUsed = System.currentTimeMillis();
+            synchronized (idle) {
+                idle.addFirst(connection);
+            }
+        } else {
+            connection.destroy();
+        }
+        if (permit != null) {
+            permit.release();
+        }
+    }
+
+    /** Détecte les connexions coupées par le slave pendant leur inactivité. */
+    private boolean isUsable(Connection connection) {
+        if (connection.socket.isClosed() || connection.socket.isInputShutdown()) {
+            return false;
+        }
+        try {
+            if (connection.in.available() > 0) {
+                return false; // données inattendues : flux désaligné
+            }
+            if (System.currentTimeMillis() - connection.lastUsed < VALIDATE_AFTER) {
+                return true;
+            }
+            connection.socket.setSoTimeout(PING_TIMEOUT);
+            connection.out.writeUTF("PING");
+            connection.out.flush();
+            boolean alive = "PONG".equals(connection.in.readUTF());
+            connection.socket.setSoTimeout(readTimeout);
+            return alive;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Flux comptant les octets reçus, pour le débit des échanges. */
+    private static final class CountingInput extends FilterInputStream {
+        volatile long count;
+
+        CountingInput(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+
+    /** Flux comptant les octets envoyés. */
+    private static final class CountingOutput extends FilterOutputStream {
+        volatile long count;
+
+        CountingOutput(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
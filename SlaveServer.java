@@ -2,13 +2,56 @@ package serveur;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import java.util.Properties;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+import java.util.zip.Inflater;
 
 public class SlaveServer {
     private static int PORT;
     private static String SERVER_DIR;
     private static int slaveNumber;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String CHUNK_SUFFIX = ".chunk";
+    private static final String LEGACY_SUFFIX = ".part"; // parties écrites par l'ancien serveur, à migrer
+    private static final int MAX_LIST_PAGE = 10000;
+    private static ChunkIndex index;
+    private static PackStore packs;
+    private static final AtomicLong packedFiles = new AtomicLong(); // petits fichiers ajoutés aux segments
+    private static final AtomicLong checksumErrors = new AtomicLong(); // chunks reçus avec un CRC32C faux
+    private static final AtomicLong compressedChunks = new AtomicLong(); // chunks reçus en trames compressées
+    private static final long WRITE_RATE_MIN_BYTES = 256 * 1024; // écritures plus petites : dominées par la latence
+    private static final double EWMA_WEIGHT = 0.2; // poids de la dernière mesure du débit d'écriture
+    private static double writeRate = -1; // moyenne mobile du débit d'écriture (octets/s), -1 : pas encore mesuré
+    private static RequestExecutor requestExecutor;
+    private static ServerEngine serverEngine;
+
+    // Champs d'en-tête de chaque commande, pour le moteur SELECTOR
+    private static final Map<String, String> COMMAND_HEADERS = Map.ofEntries(
+            Map.entry("CONNECT", ""),
+            Map.entry("PING", ""),
+            Map.entry("CAPABILITIES", ""),
+            Map.entry("UPLOAD_PART", "UIL"),
+            Map.entry("UPLOAD_PART_FRAMED", "UIL"),
+            Map.entry("DOWNLOAD_PART", "UI"),
+            Map.entry("DOWNLOAD_PART_FRAMED", "UI"),
+            Map.entry("DOWNLOAD_PART_RANGE", "UILL"),
+            Map.entry("PACK_APPEND", "I"),
+            Map.entry("READ_PACK", "ILL"),
+            Map.entry("PACK_RELEASE", "I"),
+            Map.entry("LIST_CHUNKS", "U"),
+            Map.entry("LIST", ""),
+            Map.entry("LIST_PAGE", "UUI"),
+            Map.entry("DELETE", "U"),
+            Map.entry("DELETE_BATCH", "I"),
+            Map.entry("LIST_LEGACY", ""),
+            Map.entry("READ_LEGACY_PART", "UI"),
+            Map.entry("DELETE_LEGACY", "U"),
+            Map.entry("STATS", ""));
 
     public static void main(String[] args) {
         if (args.length < 1) {
@@ -55,12 +98,33 @@ public class SlaveServer {
             SERVER_DIR = prop.getProperty("SLAVE_" + slaveNumber + "_DIR", 
                                         "./slave_reception_" + slaveNumber + "/");
 
+            requestExecutor = RequestExecutor.fromConfig("slave-" + slaveNumber + "-handler", prop);
+            serverEngine = ServerEngine.fromConfig(prop, requestExecutor, COMMAND_HEADERS);
+            Connection.zeroCopy = Boolean.parseBoolean(prop.getProperty("ZERO_COPY", "true"));
+
             // Créer le répertoire s'il n'existe pas
             new File(SERVER_DIR).mkdirs();
 
+            long start = System.currentTimeMillis();
+            index = new ChunkIndex(new File(SERVER_DIR), CHUNK_SUFFIX);
+            index.load();
+            packs = new PackStore(new File(SERVER_DIR),
+                    Long.parseLong(prop.getProperty("PACK_SEGMENT_SIZE", String.valueOf(256L * 1024 * 1024))));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    index.save();
+                } catch (IOException e) {
+                    System.err.println("Échec de l'enregistrement de l'index des chunks: " + e.getMessage());
+                }
+            }));
+
             System.out.println("Configuration du Slave " + slaveNumber + " chargée avec succès");
             System.out.println("Port d'écoute: " + PORT);
             System.out.println("Répertoire de stockage: " + SERVER_DIR);
+            System.out.println("Index des chunks: " + index.size() + " chunks ("
+                    + (System.currentTimeMillis() - start) + " ms)");
+            System.out.println("Modèle d'exécution: " + requestExecutor.model());
+            System.out.println("Moteur réseau: " + serverEngine.getClass().getSimpleName());
         } catch (IOException ex) {
             System.err.println("Erreur lors de la lecture du fichier de configuration.");
             ex.printStackTrace();
@@ -69,114 +133,455 @@ public class SlaveServer {
     }
 
     private void startServer() {
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
+        try {
             System.out.println("\nSlaveServer " + slaveNumber + " démarré sur le port " + PORT);
-
-            while (true) {
-                Socket client = serverSocket.accept();
-                System.out.println("\nClient connecté: " + client.getInetAddress());
-                new Thread(() -> handleClientRequest(client)).start();
-            }
+            serverEngine.serve(PORT, this::handleCommand);
         } catch (IOException e) {
             System.err.println("Erreur fatale du serveur slave " + slaveNumber + ":");
             e.printStackTrace();
             System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Serveur slave " + slaveNumber + " interrompu");
         }
     }
 
-private void handleClientRequest(Socket client) {
-        try {
-            System.out.println("Client connecté : " + client.getInetAddress());
-            DataInputStream requeteClient = new DataInputStream(client.getInputStream());
-            DataOutputStream requeteServeur = new DataOutputStream(client.getOutputStream());
-            String command = requeteClient.readUTF();
-            
-            switch(command) {
-                case "CONNECT":
-                    handleConnect(requeteServeur, client);
-                    break;
-                case "UPLOAD_PART":
-                    handleUploadPart(requeteClient);
-                    break;
-                case "DOWNLOAD_PART":
-                    handleDownloadPart(requeteClient, requeteServeur);
-                    break;
-                case "LIST":
-                    handleList(requeteServeur);
-                    break;
-                case "DELETE":
-                    handleDelete(requeteClient,requeteServeur);
-                    break;
-                default:
-                    requeteServeur.writeUTF("Commande inconnue");
-                    break;
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                client.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    /**
+     * Traite une commande du serveur principal. La connexion est persistante : le moteur
+     * attend la commande suivante tant que cette méthode renvoie true.
+     */
+    private boolean handleCommand(Connection client, String command) throws IOException {
+        DataInputStream requeteClient = client.in;
+        DataOutputStream requeteServeur = client.out;
+
+        switch(command) {
+            case "CONNECT":
+                handleConnect(requeteServeur, client);
+                break;
+            case "PING":
+                requeteServeur.writeUTF("PONG");
+                break;
+            case "CAPABILITIES":
+                requeteServeur.writeUTF("DEFLATE"); // trames compressées (ChunkFrames)
+                break;
+            case "UPLOAD_PART":
+                handleUploadPart(client, false);
+                break;
+            case "UPLOAD_PART_FRAMED":
+                handleUploadPart(client, true);
+                break;
+            case "DOWNLOAD_PART":
+                handleDownloadPart(client, false);
+                break;
+            case "DOWNLOAD_PART_FRAMED":
+                handleDownloadPart(client, true);
+                break;
+            case "DOWNLOAD_PART_RANGE":
+                handleDownloadPartRange(client);
+                break;
+            case "PACK_APPEND":
+                handlePackAppend(client);
+                break;
+            case "PACK_RELEASE":
+                handlePackRelease(requeteClient, requeteServeur);
+                break;
+            case "READ_PACK":
+                handleReadPack(client);
+                break;
+            case "LIST_CHUNKS":
+                handleListChunks(requeteClient, requeteServeur);
+                break;
+            case "LIST":
+                handleList(requeteServeur);
+                break;
+            case "LIST_PAGE":
+                handleListPage(requeteClient, requeteServeur);
+                break;
+            case "DELETE":
+                handleDelete(requeteClient,requeteServeur);
+                break;
+            case "DELETE_BATCH":
+                handleDeleteBatch(requeteClient, requeteServeur);
+                break;
+            case "LIST_LEGACY":
+                handleListLegacy(requeteServeur);
+                break;
+            case "READ_LEGACY_PART":
+                handleReadLegacyPart(client);
+                break;
+            case "DELETE_LEGACY":
+                handleDeleteLegacy(requeteClient, requeteServeur);
+                break;
+            case "STATS":
+                handleStats(requeteServeur);
+                break;
+            default:
+                // La suite du flux est inconnue : impossible de continuer sur cette connexion
+                requeteServeur.writeUTF("Commande inconnue");
+                return false;
+        }
+        return true;
+    }
+
+    private void handleStats(DataOutputStream requeteServeur) throws IOException {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("requetes.actives", (long) requestExecutor.activeHandlers());
+        stats.put("requetes.en_attente", (long) requestExecutor.queuedRequests());
+        stats.put("chunks.stockes", (long) index.size());
+        stats.put("controle.erreurs", checksumErrors.get());
+        stats.put("compression.chunks", compressedChunks.get());
+        stats.put("packs.segments", (long) packs.segmentCount());
+        stats.put("packs.fichiers", packedFiles.get());
+        stats.put("disque.libre", new File(SERVER_DIR).getUsableSpace());
+        stats.put("ecriture.debit_ko_s", writeRate() < 0 ? -1 : writeRate() / 1024);
+
+        requeteServeur.writeInt(stats.size());
+        for (Map.Entry<String, Long> stat : stats.entrySet()) {
+            requeteServeur.writeUTF(stat.getKey());
+            requeteServeur.writeLong(stat.getValue());
+        }
+    }
+
+    private static synchronized long writeRate() {
+        return Math.round(writeRate);
+    }
+
+    /**
+     * Débit d'écriture du disque : octets écrits rapportés au temps passé dans les écritures et le force()
+     * final, sans l'attente du réseau. Lu par le serveur principal pour répartir les chunks.
+     */
+    private static synchronized void recordWrite(long bytes, long nanos) {
+        if (bytes < WRITE_RATE_MIN_BYTES) {
+            return;
         }
+        double rate = bytes * 1e9 / Math.max(1, nanos);
+        writeRate = writeRate < 0 ? rate : writeRate + EWMA_WEIGHT * (rate - writeRate);
     }
 
-    private void handleConnect(DataOutputStream requeteServeur, Socket client) {
+    private void handleConnect(DataOutputStream requeteServeur, Connection client) {
         try {
             requeteServeur.writeUTF("CONNECTE");
-            System.out.println("Client connecté : " + client.getInetAddress());
+            System.out.println("Client connecté : " + client.peer);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private void handleUploadPart(DataInputStream data) throws IOException {
-        String fileName = data.readUTF();
-        int partNumber = data.readInt();
-        long partSize = data.readLong();
-        
-        File partFile = new File(SERVER_DIR, fileName + ".part" + partNumber);
-        try (FileOutputStream fos = new FileOutputStream(partFile)) {
-            byte[] buffer = new byte[4096];
+    /**
+     * Reçoit un chunk suivi du CRC32C calculé par le serveur principal sur les données d'origine.
+     * Le slave calcule le sien pendant la réception ; le chunk n'est gardé (avec son CRC en pied de
+     * fichier) que s'ils concordent. Avec framed, le chunk arrive en trames compressées, stockées telles quelles.
+     */
+    private void handleUploadPart(Connection client, boolean framed) throws IOException {
+        String fileName = client.in.readUTF();
+        int chunkIndex = client.in.readInt();
+        long partSize = client.in.readLong();
+
+        // Écriture sous un nom temporaire : un chunk incomplet n'est jamais visible
+        File partFile = chunkFile(fileName, chunkIndex);
+        partFile.getParentFile().mkdirs(); // chemin logique d'un fichier reçu dans un dossier
+        File tempFile = new File(partFile.getPath() + ".tmp");
+        boolean received = false;
+        try {
+            boolean valid = framed ? receiveFramedChunk(client, tempFile, partSize)
+                    : receiveChunk(client, tempFile, partSize);
+            if (!valid) {
+                checksumErrors.incrementAndGet();
+                System.out.println("ERREUR: CRC32C invalide pour le chunk " + chunkIndex + " de " + fileName);
+                client.out.writeUTF("ERREUR: CRC32C invalide");
+                return;
+            }
+            Files.move(tempFile.toPath(), partFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            index.put(fileName, chunkIndex, partSize);
+            received = true;
+        } finally {
+            if (!received) {
+                tempFile.delete();
+            }
+        }
+        if (framed) {
+            compressedChunks.incrementAndGet();
+        }
+
+        System.out.println("Chunk " + chunkIndex + " du fichier " + fileName + " reçu" + (framed ? " (compressé)" : ""));
+        client.out.writeUTF("OK"); // acquittement attendu par le serveur principal
+    }
+
+    /**
+     * Chunk brut, lu dans un tampon direct pour calculer le CRC32C avant l'écriture. Le chunk est sur
+     * disque (force) avant d'être acquitté.
+     */
+    private boolean receiveChunk(Connection client, File tempFile, long partSize) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw")) {
+            raf.setLength(partSize + ChunkFooter.SIZE); // réserve la taille finale
+            long writeNanos = client.receiveFileRegion(raf.getChannel(), 0, partSize, crc);
+            int expected = client.in.readInt();
+            if ((int) crc.getValue() != expected) {
+                return false;
+            }
+            long start = System.nanoTime();
+            new ChunkFooter(expected, 0, partSize, partSize).write(raf.getChannel(), partSize);
+            raf.getChannel().force(false);
+            recordWrite(partSize, writeNanos + System.nanoTime() - start);
+            return true;
+        }
+    }
+
+    /** Chunk en trames compressées : écrites telles quelles, décompressées en mémoire pour le CRC32C, puis force. */
+    private boolean receiveFramedChunk(Connection client, File tempFile, long partSize) throws IOException {
+        CRC32C crc = new CRC32C();
+        Inflater inflater = new Inflater();
+        byte[] frame = new byte[ChunkFrames.MAX_FRAME];
+        byte[] raw = new byte[ChunkFrames.MAX_FRAME];
+        try (FileOutputStream fos = new FileOutputStream(tempFile);
+                DataOutputStream file = new DataOutputStream(new BufferedOutputStream(fos, BUFFER_SIZE))) {
+            long stored = 0;
             long remaining = partSize;
+            long writeNanos = 0;
+            while (remaining > 0) {
+                int[] header = ChunkFrames.readHeader(client.in);
+                if (header[0] > remaining) {
+                    throw new IOException("Trame au-delà de la fin du chunk");
+                }
+                client.in.readFully(frame, 0, header[1]);
+                long start = System.nanoTime();
+                file.writeInt(header[0]);
+                file.writeInt(header[1]);
+                file.write(frame, 0, header[1]);
+                writeNanos += System.nanoTime() - start;
+
+                ChunkFrames.decode(inflater, frame, header[1], raw, header[0]);
+                crc.update(raw, 0, header[0]);
+                stored += ChunkFrames.HEADER_SIZE + header[1];
+                remaining -= header[0];
+            }
+            int expected = client.in.readInt();
+            if ((int) crc.getValue() != expected) {
+                return false;
+            }
+            long start = System.nanoTime();
+            file.flush();
+            new ChunkFooter(expected, ChunkFooter.FLAG_FRAMED, partSize, stored).write(fos.getChannel(), stored);
+            fos.getChannel().force(false);
+            recordWrite(stored, writeNanos + System.nanoTime() - start);
+            return true;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Envoie un chunk entier : OK, sa taille d'origine, son CRC32C, puis les octets.
+     * Le CRC est contrôlé par le lecteur, qui voit passer les octets ; ici l'envoi reste en zero-copy.
+     * Un lecteur qui accepte les trames (DOWNLOAD_PART_FRAMED) reçoit en plus un indicateur : un chunk
+     * stocké compressé lui est envoyé tel quel, précédé de sa taille stockée. Les autres lecteurs
+     * reçoivent les octets d'origine, décompressés au vol.
+     */
+    private void handleDownloadPart(Connection client, boolean acceptsFrames) throws IOException {
+        String fileName = client.in.readUTF();
+        int chunkIndex = client.in.readInt();
+        long partSize = index.size(fileName, chunkIndex);
+        if (partSize < 0) {
+            client.out.writeUTF("ERROR");
+            return;
+        }
+
+        File partFile = chunkFile(fileName, chunkIndex);
+        try (FileChannel part = FileChannel.open(partFile.toPath(), StandardOpenOption.READ)) {
+            ChunkFooter footer = ChunkFooter.read(part);
+            boolean framed = footer.isFramed();
+            client.out.writeUTF("OK");
+            client.out.writeLong(partSize);
+            client.out.writeInt(footer.crc);
+            if (acceptsFrames) {
+                client.out.writeBoolean(framed);
+            }
+
+            if (framed && acceptsFrames) {
+                client.out.writeLong(footer.storedLength);
+                client.sendFileRegion(part, 0, footer.storedLength);
+            } else if (framed) {
+                sendDecompressed(client, part, footer, 0, partSize);
+            } else {
+                client.sendFileRegion(part, 0, partSize);
+            }
+        }
+    }
+
+    /** Partie d'un chunk : position et longueur (tronquée à la fin du chunk). */
+    private void handleDownloadPartRange(Connection client) throws IOException {
+        String fileName = client.in.readUTF();
+        int chunkIndex = client.in.readInt();
+        long offset = client.in.readLong();
+        long length = client.in.readLong();
+        long partSize = index.size(fileName, chunkIndex);
+
+        if (partSize < 0 || offset < 0 || offset > partSize || length < 0) {
+            client.out.writeUTF("ERROR");
+            return;
+        }
+
+        File partFile = chunkFile(fileName, chunkIndex);
+        try (FileChannel part = FileChannel.open(partFile.toPath(), StandardOpenOption.READ)) {
+            ChunkFooter footer = ChunkFooter.read(part);
+            long count = Math.min(length, partSize - offset);
+            client.out.writeUTF("OK");
+            client.out.writeLong(count);
+            if (footer.isFramed()) {
+                sendDecompressed(client, part, footer, offset, count);
+            } else {
+                client.sendFileRegion(part, offset, count);
+            }
+        }
+    }
+
+    /** Envoie count octets d'origine d'un chunk compressé à partir de offset ; les trames sautées ne sont pas décompressées. */
+    private void sendDecompressed(Connection client, FileChannel part, ChunkFooter footer, long offset, long count)
+            throws IOException {
+        DataInputStream stored = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(part.position(0)), BUFFER_SIZE));
+        try (ChunkFrames.Input input = new ChunkFrames.Input(stored, footer.length)) {
+            long skipped = input.skip(offset);
+            if (skipped != offset) {
+                throw new EOFException("Chunk compressé plus court que prévu");
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = count;
             while (remaining > 0) {
-                int read = data.read(buffer, 0, (int) Math.min(buffer.length, remaining));
-                if (read == -1) break;
-                fos.write(buffer, 0, read);
+                int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new EOFException("Chunk compressé plus court que prévu");
+                }
+                client.out.write(buffer, 0, read);
                 remaining -= read;
             }
         }
-        System.out.println("Partie " + partNumber + " du fichier " + fileName + " reçue");
+        client.out.flush();
     }
 
-    private void handleDownloadPart(DataInputStream requeteClient, DataOutputStream requeteServeur) throws IOException {
-        String fileName = requeteClient.readUTF();
-        int partNumber = requeteClient.readInt();
-        File partFile = new File(SERVER_DIR, fileName + ".part" + partNumber);
-        
-        if (!partFile.exists()) {
-            requeteServeur.writeUTF("ERROR");
+    /**
+     * Ajoute un lot de petits fichiers à un segment de groupage : le nombre de fichiers, puis pour chacun
+     * son nom, sa taille, son CRC32C et ses octets. Répond OK, le numéro du segment et la position des
+     * données de chaque fichier. Le lot entier est refusé si un CRC ne concorde pas.
+     */
+    private void handlePackAppend(Connection client) throws IOException {
+        int count = client.in.readInt();
+        long[] offsets = new long[count];
+        boolean valid = true;
+        boolean appended = false;
+
+        PackStore.Segment segment = packs.acquire();
+        long start = segment.size;
+        long writeNanos = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                String name = client.in.readUTF();
+                long length = client.in.readLong();
+                int expected = client.in.readInt();
+
+                offsets[i] = PackStore.appendHeader(segment, name, length, expected);
+                CRC32C crc = new CRC32C();
+                writeNanos += client.receiveFileRegion(segment.channel, segment.size, length, crc);
+                segment.size += length;
+                valid &= (int) crc.getValue() == expected;
+            }
+            if (valid) {
+                long forceStart = System.nanoTime();
+                segment.channel.force(false); // lot sur disque avant la réponse OK
+                recordWrite(segment.size - start, writeNanos + System.nanoTime() - forceStart);
+            }
+            appended = valid;
+        } finally {
+            if (!appended) {
+                PackStore.truncate(segment, start);
+            }
+            packs.release(segment);
+        }
+
+        if (!valid) {
+            checksumErrors.incrementAndGet();
+            System.out.println("ERREUR: CRC32C invalide dans un lot de " + count + " fichiers");
+            client.out.writeUTF("ERREUR: CRC32C invalide");
+            return;
+        }
+        packedFiles.addAndGet(count);
+        client.out.writeUTF("OK");
+        client.out.writeInt(segment.id);
+        for (long offset : offsets) {
+            client.out.writeLong(offset);
+        }
+    }
+
+    /**
+     * Fichiers groupés supprimés ou remplacés au catalogue : nombre, puis segment, position et taille de
+     * chacun. Répond OK ; les segments qui n'ont plus aucun fichier sont supprimés.
+     */
+    private void handlePackRelease(DataInputStream requeteServeur, DataOutputStream requeteSlave) throws IOException {
+        int count = requeteServeur.readInt();
+        int segments = 0;
+        for (int i = 0; i < count; i++) {
+            if (packs.free(requeteServeur.readInt(), requeteServeur.readLong(), requeteServeur.readLong())) {
+                segments++;
+            }
+        }
+        requeteSlave.writeUTF("OK");
+        if (segments > 0) {
+            System.out.println(segments + " segments de groupage supprimés");
+        }
+    }
+
+    /** Octets d'un fichier groupé : segment, position et longueur. */
+    private void handleReadPack(Connection client) throws IOException {
+        int segmentId = client.in.readInt();
+        long offset = client.in.readLong();
+        long length = client.in.readLong();
+
+        File segmentFile = packs.file(segmentId);
+        if (offset < 0 || length < 0 || offset + length > segmentFile.length()) {
+            client.out.writeUTF("ERROR");
             return;
         }
-        
-        requeteServeur.writeUTF("OK");
-        requeteServeur.writeLong(partFile.length());
-        
-        try (FileInputStream fis = new FileInputStream(partFile)) {
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                requeteServeur.write(buffer, 0, bytesRead);
+        try (FileChannel segment = FileChannel.open(segmentFile.toPath(), StandardOpenOption.READ)) {
+            client.out.writeUTF("OK");
+            client.out.writeLong(length);
+            client.sendFileRegion(segment, offset, length);
+        }
+    }
+
+    private File chunkFile(String fileName, int chunkIndex) {
+        return new File(SERVER_DIR, fileName + CHUNK_SUFFIX + chunkIndex);
+    }
+
+    /** Chunks d'un fichier : nombre, puis pour chacun son numéro, sa taille et son CRC32C (pied du chunk). */
+    private void handleListChunks(DataInputStream requeteClient, DataOutputStream requeteServeur) throws IOException {
+        String fileName = requeteClient.readUTF();
+        Map<Integer, Long> sizes = index.chunks(fileName);
+        Map<Integer, long[]> chunks = new TreeMap<>();
+        for (Map.Entry<Integer, Long> chunk : sizes.entrySet()) {
+            try (FileChannel part = FileChannel.open(chunkFile(fileName, chunk.getKey()).toPath(),
+                    StandardOpenOption.READ)) {
+                chunks.put(chunk.getKey(), new long[] { chunk.getValue(), ChunkFooter.read(part).crc });
+            } catch (IOException e) {
+                System.err.println("Chunk illisible ignoré: " + fileName + " (" + e.getMessage() + ")");
             }
         }
+
+        requeteServeur.writeInt(chunks.size());
+        for (Map.Entry<Integer, long[]> chunk : chunks.entrySet()) {
+            requeteServeur.writeInt(chunk.getKey());
+            requeteServeur.writeLong(chunk.getValue()[0]);
+            requeteServeur.writeInt((int) chunk.getValue()[1]);
+        }
     }
 
     private void handleDelete(DataInputStream requeteServeur,DataOutputStream requeteSlave){
         try{
             String filename = requeteServeur.readUTF();
-            File fileToDelete = new File(SERVER_DIR,filename);
-            if(fileToDelete.exists() && fileToDelete.delete()){
+            // Supprimer tous les chunks du fichier présents sur ce slave
+            int deleted = deleteChunks(filename);
+            if(deleted > 0){
                 requeteSlave.writeUTF("OK");
             }else{
                 requeteSlave.writeUTF("ERREUR");
@@ -187,26 +592,117 @@ private void handleClientRequest(Socket client) {
         }
     }
 
-private void handleList(DataOutputStream requeteServeur) throws IOException {
-    File directory = new File(SERVER_DIR);
-    File[] files = directory.listFiles();
-    
-    // Filtrer pour ne garder que les fichiers .partX
-    List<File> partFiles = new ArrayList<>();
-    if (files != null) {
+    /**
+     * Suppression groupée : nombre de noms puis les noms ; répond OK puis, pour chaque nom dans l'ordre,
+     * le nombre de chunks supprimés (0 si le slave n'en avait plus).
+     */
+    private void handleDeleteBatch(DataInputStream requeteServeur, DataOutputStream requeteSlave) throws IOException {
+        int count = requeteServeur.readInt();
+        int[] deleted = new int[count];
+        for (int i = 0; i < count; i++) {
+            deleted[i] = deleteChunks(requeteServeur.readUTF());
+        }
+        requeteSlave.writeUTF("OK");
+        for (int chunks : deleted) {
+            requeteSlave.writeInt(chunks);
+        }
+    }
+
+    /** Supprime tous les chunks d'un fichier présents sur ce slave ; renvoie leur nombre. */
+    private int deleteChunks(String filename) {
+        int deleted = 0;
+        for (int chunk : index.chunks(filename).keySet()) {
+            index.remove(filename, chunk);
+            if (chunkFile(filename, chunk).delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    private void handleList(DataOutputStream requeteServeur) throws IOException {
+        // Copie de l'index : le nombre annoncé doit correspondre aux noms envoyés
+        List<String> partNames = new ArrayList<>(index.names());
+
+        requeteServeur.writeInt(partNames.size());
+        for (String name : partNames) {
+            requeteServeur.writeUTF(name);
+        }
+    }
+
+    /**
+     * Parties écrites par l'ancien serveur (nom.partN à la racine du répertoire), que le serveur principal
+     * migre en chunks : nombre, puis pour chacune le nom du fichier, le numéro de la partie et sa taille.
+     */
+    private void handleListLegacy(DataOutputStream requeteServeur) throws IOException {
+        List<File> parts = legacyParts(null);
+        requeteServeur.writeInt(parts.size());
+        for (File part : parts) {
+            String name = part.getName();
+            int suffix = name.lastIndexOf(LEGACY_SUFFIX);
+            requeteServeur.writeUTF(name.substring(0, suffix));
+            requeteServeur.writeInt(Integer.parseInt(name.substring(suffix + LEGACY_SUFFIX.length())));
+            requeteServeur.writeLong(part.length());
+        }
+    }
+
+    /** Octets d'une partie de l'ancien format : nom du fichier et numéro de la partie. */
+    private void handleReadLegacyPart(Connection client) throws IOException {
+        String fileName = client.in.readUTF();
+        int partNumber = client.in.readInt();
+        File partFile = new File(SERVER_DIR, fileName + LEGACY_SUFFIX + partNumber);
+        if (!legacyParts(fileName).contains(partFile)) { // jamais un chemin hors du répertoire
+            client.out.writeUTF("ERROR");
+            return;
+        }
+        try (FileChannel part = FileChannel.open(partFile.toPath(), StandardOpenOption.READ)) {
+            client.out.writeUTF("OK");
+            client.out.writeLong(part.size());
+            client.sendFileRegion(part, 0, part.size());
+        }
+    }
+
+    /** Supprime les parties de l'ancien format d'un fichier, une fois migré ; répond OK et leur nombre. */
+    private void handleDeleteLegacy(DataInputStream requeteServeur, DataOutputStream requeteSlave) throws IOException {
+        int deleted = 0;
+        for (File part : legacyParts(requeteServeur.readUTF())) {
+            if (part.delete()) {
+                deleted++;
+            }
+        }
+        requeteSlave.writeUTF("OK");
+        requeteSlave.writeInt(deleted);
+    }
+
+    /** Parties de l'ancien format présentes à la racine du répertoire : toutes, ou celles de fileName. */
+    private List<File> legacyParts(String fileName) {
+        List<File> parts = new ArrayList<>();
+        File[] files = new File(SERVER_DIR).listFiles();
+        if (files == null) {
+            return parts;
+        }
         for (File file : files) {
-            if (file.getName().matches(".*\\.part[0-9]+$")) {
-                partFiles.add(file);
+            String name = file.getName();
+            int suffix = name.lastIndexOf(LEGACY_SUFFIX);
+            if (file.isFile() && suffix > 0 && name.substring(suffix + LEGACY_SUFFIX.length()).matches("[0-9]{1,9}")
+                    && (fileName == null || name.substring(0, suffix).equals(fileName))) {
+                parts.add(file);
             }
         }
+        return parts;
     }
-    
-    // Envoyer le nombre de fichiers
-    requeteServeur.writeInt(partFiles.size());
-    
-    // Envoyer chaque nom de fichier
-    for (File file : partFiles) {
-        requeteServeur.writeUTF(file.getName());
+
+    /** Page de noms de chunks : motif (préfixe ou glob), jeton de continuation, taille maximale. */
+    private void handleListPage(DataInputStream requeteClient, DataOutputStream requeteServeur) throws IOException {
+        NameFilter filter = NameFilter.parse(requeteClient.readUTF());
+        String after = requeteClient.readUTF();
+        int limit = Math.max(1, Math.min(MAX_LIST_PAGE, requeteClient.readInt()));
+
+        List<String> page = filter.page(index.names(), after, limit);
+        requeteServeur.writeInt(page.size());
+        for (String name : page) {
+            requeteServeur.writeUTF(name);
+        }
+        requeteServeur.writeUTF(NameFilter.nextToken(page, limit));
     }
-}
 }
\ No newline at end of file
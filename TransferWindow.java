@@ -0,0 +1,102 @@
+package serveur;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * Fenêtre de transfert bornée entre un thread producteur et un thread consommateur.
+ * Les blocs sont recyclés : la mémoire utilisée ne dépasse jamais slots * blockSize,
+ * quelle que soit la taille des données qui transitent.
+ */
+class TransferWindow {
+    static final class Block {
+        final byte[] data;
+        int length;
+
+        Block(int size) {
+            this.data = new byte[size];
+        }
+    }
+
+    private static final Block END = new Block(0);
+    private static final Block POISON = new Block(0);
+
+    private final int slots;
+    private final int blockSize;
+    private final BlockingQueue<Block> free = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Block> filled = new LinkedBlockingQueue<>();
+    private int allocated;
+    private volatile IOException failure;
+
+    TransferWindow(int slots, int blockSize) {
+        this.slots = slots;
+        this.blockSize = blockSize;
+    }
+
+    /** Côté producteur : obtient un bloc libre, en attendant que le consommateur en rende un. */
+    Block acquire() throws IOException {
+        Block block = free.poll();
+        if (block == null) {
+            synchronized (this) {
+                if (allocated < slots) {
+                    allocated++;
+                    block = new Block(blockSize);
+                }
+            }
+        }
+        if (block == null) {
+            block = await(free);
+        }
+        if (block == POISON) {
+            free.add(POISON);
+            throw failure;
+        }
+        return block;
+    }
+
+    /** Côté producteur : rend un bloc rempli visible au consommateur. */
+    void publish(Block block) {
+        filled.add(block);
+    }
+
+    /** Côté producteur : signale la fin des données. */
+    void finish() {
+        filled.add(END);
+    }
+
+    /** Côté consommateur : prochain bloc rempli, ou null en fin de données. */
+    Block take() throws IOException {
+        Block block = await(filled);
+        if (block == END) {
+            return null;
+        }
+        if (block == POISON) {
+            filled.add(POISON);
+            throw failure;
+        }
+        return block;
+    }
+
+    /** Côté consommateur : rend un bloc au producteur une fois ses données écrites. */
+    void recycle(Block block) {
+        free.add(block);
+    }
+
+    /** Interrompt le transfert des deux côtés ; les appels bloqués lèvent l'erreur. */
+    void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        free.add(POISON);
+        filled.add(POISON);
+    }
+
+    private static Block await(BlockingQueue<Block> queue) throws IOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transfert interrompu");
+        }
+    }
+}
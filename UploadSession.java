@@ -0,0 +1,96 @@
+package serveur;
+
+import java.util.BitSet;
+
+/**
+ * Upload par session : le client ouvre une session (UPLOAD_BEGIN), envoie des plages alignées
+ * sur les chunks par autant de connexions qu'il veut (UPLOAD_RANGE), peut demander les chunks
+ * déjà reçus (UPLOAD_STATUS) pour reprendre après une coupure, puis la valide (UPLOAD_COMMIT).
+ * Le fichier n'entre au catalogue qu'une fois tous ses chunks acquittés. Ses chunks sont écrits sous
+ * la version réservée à l'ouverture ({@link Catalog#storedName}), sans toucher à la version en place.
+ */
+class UploadSession {
+    final String id;
+    final String fileName;
+    final long size;
+    final long chunkSize;
+    final int[] chunkSlaves;
+    final long version;
+    private final BitSet received;
+    private final int[] chunkCrcs; // CRC32C des chunks reçus, pour le catalogue
+    private boolean closed;
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    UploadSession(String id, String fileName, long size, long chunkSize, int[] chunkSlaves, long version) {
+        this.id = id;
+        this.fileName = fileName;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.chunkSlaves = chunkSlaves;
+        this.version = version;
+        this.received = new BitSet(chunkSlaves.length);
+        this.chunkCrcs = new int[chunkSlaves.length];
+    }
+
+    /** Nom des chunks de la session sur les slaves. */
+    String storedName() {
+        return Catalog.storedName(fileName, version);
+    }
+
+    int chunkCount() {
+        return chunkSlaves.length;
+    }
+
+    long chunkLength(int index) {
+        return Math.min(chunkSize, size - index * chunkSize);
+    }
+
+    /** Vrai si la plage commence sur un début de chunk et finit sur une fin de chunk. */
+    boolean isAligned(long offset, long length) {
+        long end = offset + length;
+        return offset >= 0 && length >= 0 && end <= size && offset % chunkSize == 0
+                && (end % chunkSize == 0 || end == size);
+    }
+
+    synchronized void chunkReceived(int index, int crc) {
+        received.set(index);
+        chunkCrcs[index] = crc;
+    }
+
+    synchronized int chunkCrc(int index) {
+        return chunkCrcs[index];
+    }
+
+    synchronized int[] chunkCrcs() {
+        return chunkCrcs.clone();
+    }
+
+    synchronized int[] receivedChunks() {
+        return received.stream().toArray();
+    }
+
+    synchronized int receivedCount() {
+        return received.cardinality();
+    }
+
+    synchronized boolean isComplete() {
+        return received.cardinality() == chunkSlaves.length;
+    }
+
+    /** Réserve la fin de la session à un seul appelant (validation ou expiration) ; faux si elle est prise. */
+    synchronized boolean close() {
+        if (closed) {
+            return false;
+        }
+        closed = true;
+        return true;
+    }
+
+    void touch() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    boolean isIdleSince(long time) {
+        return lastActivity < time;
+    }
+}
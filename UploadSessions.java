@@ -0,0 +1,210 @@
+package serveur;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sessions d'upload en cours, persistées par un journal en ajout seul : ouverture de session,
+ * chunk acquitté par son slave, fin de session. Après un redémarrage du serveur principal,
+ * une session reprend avec ses chunks déjà reçus, qui ne sont pas renvoyés.
+ *
+ * Chaque enregistrement est forcé sur le disque avant d'être confirmé : un chunk annoncé reçu au
+ * client l'est encore après une coupure de courant.
+ *
+ * Le journal est réécrit (sessions vivantes seulement) au chargement et quand il a beaucoup grossi.
+ */
+class UploadSessions {
+    private static final byte RECORD_BEGIN = 1;
+    private static final byte RECORD_CHUNK = 2;
+    private static final byte RECORD_END = 3;
+    private static final int COMPACT_THRESHOLD = 100000; // enregistrements avant réécriture
+
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    private final File journalFile;
+    private final Object journalLock = new Object();
+    private FileOutputStream journalOutput; // pour forcer le journal sur le disque
+    private DataOutputStream journal;
+    private long journalRecords;
+
+    UploadSessions(File directory) {
+        directory.mkdirs();
+        this.journalFile = new File(directory, "uploads.journal");
+    }
+
+    /** Rejoue le journal puis le réécrit sans les sessions terminées. */
+    void load() throws IOException {
+        if (journalFile.exists()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(journalFile), 1024 * 1024))) {
+                replay(in);
+            }
+        }
+        compact();
+    }
+
+    UploadSession begin(String fileName, long size, long chunkSize, int[] chunkSlaves, long version)
+            throws IOException {
+        UploadSession session = new UploadSession(UUID.randomUUID().toString(), fileName, size, chunkSize,
+                chunkSlaves, version);
+        synchronized (journalLock) {
+            sessions.put(session.id, session);
+            journal.writeByte(RECORD_BEGIN);
+            writeSession(journal, session);
+            appended();
+        }
+        return session;
+    }
+
+    UploadSession get(String id) {
+        return sessions.get(id);
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    /** Plus grande version réservée par une session en cours, 0 s'il n'y en a pas. */
+    long maxVersion() {
+        long max = 0;
+        for (UploadSession session : sessions.values()) {
+            max = Math.max(max, session.version);
+        }
+        return max;
+    }
+
+    /** Enregistre un chunk acquitté par son slave, avec son CRC32C. */
+    void chunkReceived(UploadSession session, int index, int crc) throws IOException {
+        synchronized (journalLock) {
+            session.chunkReceived(index, crc);
+            journal.writeByte(RECORD_CHUNK);
+            journal.writeUTF(session.id);
+            journal.writeInt(index);
+            journal.writeInt(crc);
+            appended();
+        }
+    }
+
+    /** Termine une session (validée ou abandonnée) ; faux si elle l'était déjà. */
+    boolean end(UploadSession session) throws IOException {
+        synchronized (journalLock) {
+            if (sessions.remove(session.id) == null) {
+                return false;
+            }
+            journal.writeByte(RECORD_END);
+            journal.writeUTF(session.id);
+            appended();
+            return true;
+        }
+    }
+
+    /** Sessions sans activité depuis time. */
+    List<UploadSession> idleSince(long time) {
+        List<UploadSession> idle = new ArrayList<>();
+        for (UploadSession session : sessions.values()) {
+            if (session.isIdleSince(time)) {
+                idle.add(session);
+            }
+        }
+        return idle;
+    }
+
+    /** Réécrit le journal si beaucoup d'enregistrements se sont accumulés depuis la dernière réécriture. */
+    void compactIfNeeded() throws IOException {
+        synchronized (journalLock) {
+            if (journalRecords >= COMPACT_THRESHOLD) {
+                compact();
+            }
+        }
+    }
+
+    private void compact() throws IOException {
+        synchronized (journalLock) {
+            if (journal != null) {
+                journal.close();
+            }
+            File tempFile = new File(journalFile.getPath() + ".tmp");
+            FileOutputStream file = new FileOutputStream(tempFile);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1024 * 1024))) {
+                for (UploadSession session : sessions.values()) {
+                    out.writeByte(RECORD_BEGIN);
+                    writeSession(out, session);
+                    for (int index : session.receivedChunks()) {
+                        out.writeByte(RECORD_CHUNK);
+                        out.writeUTF(session.id);
+                        out.writeInt(index);
+                        out.writeInt(session.chunkCrc(index));
+                    }
+                }
+                out.flush();
+                file.getChannel().force(false);
+            }
+            Files.move(tempFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            journalOutput = new FileOutputStream(journalFile, true);
+            journal = new DataOutputStream(new BufferedOutputStream(journalOutput));
+            journalRecords = 0;
+        }
+    }
+
+    private void appended() throws IOException {
+        journal.flush();
+        journalOutput.getChannel().force(false);
+        journalRecords++;
+    }
+
+    private void replay(DataInputStream in) throws IOException {
+        while (true) {
+            byte type;
+            try {
+                type = in.readByte();
+            } catch (EOFException e) {
+                return;
+            }
+            try {
+                if (type == RECORD_BEGIN) {
+                    UploadSession session = readSession(in);
+                    sessions.put(session.id, session);
+                } else if (type == RECORD_CHUNK) {
+                    UploadSession session = sessions.get(in.readUTF());
+                    int index = in.readInt();
+                    int crc = in.readInt();
+                    if (session != null) {
+                        session.chunkReceived(index, crc);
+                    }
+                } else if (type == RECORD_END) {
+                    sessions.remove(in.readUTF());
+                } else {
+                    return;
+                }
+            } catch (EOFException e) {
+                return; // dernier enregistrement incomplet (arrêt brutal) : ignoré
+            }
+        }
+    }
+
+    private static void writeSession(DataOutputStream out, UploadSession session) throws IOException {
+        out.writeUTF(session.id);
+        out.writeUTF(session.fileName);
+        out.writeLong(session.size);
+        out.writeLong(session.chunkSize);
+        out.writeInt(session.chunkSlaves.length);
+        for (int slave : session.chunkSlaves) {
+            out.writeShort(slave);
+        }
+        out.writeLong(session.version);
+    }
+
+    private static UploadSession readSession(DataInputStream in) throws IOException {
+        String id = in.readUTF();
+        String fileName = in.readUTF();
+        long size = in.readLong();
+        long chunkSize = in.readLong();
+        int[] chunkSlaves = new int[in.readInt()];
+        for (int i = 0; i < chunkSlaves.length; i++) {
+            chunkSlaves[i] = in.readShort();
+        }
+        return new UploadSession(id, fileName, size, chunkSize, chunkSlaves, in.readLong());
+    }
+}